@@ -0,0 +1,19 @@
+package br.com.weather.weatherrest;
+
+import org.apache.coyote.ProtocolHandler;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/*
+ * always registered, VirtualThreads alone decides from -Dweather.virtualThreads.
+ * tomcat keeps its own pool when it's off or the jdk has no virtual threads.
+ */
+@Configuration
+public class ThreadingConfiguration {
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<ProtocolHandler> virtualThreadProtocolHandler() {
+        return (handler) -> VirtualThreads.getExecutor().ifPresent(handler::setExecutor);
+    }
+}
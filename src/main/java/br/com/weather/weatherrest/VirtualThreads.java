@@ -0,0 +1,38 @@
+package br.com.weather.weatherrest;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * opt-in (-Dweather.virtualThreads=true) virtual thread executor. the build
+ * still targets 17, so it's looked up by reflection and falls back to the
+ * regular platform thread pools when the running jdk doesn't have it.
+ */
+public final class VirtualThreads {
+    public static final String PROPERTY = "weather.virtualThreads";
+
+    private static final Optional<ExecutorService> executor = create();
+
+    public static boolean isEnabled() {
+        return executor.isPresent();
+    }
+
+    public static Optional<ExecutorService> getExecutor() {
+        return executor;
+    }
+
+    private static Optional<ExecutorService> create() {
+        if (!Boolean.getBoolean(PROPERTY)) {
+            return Optional.empty();
+        }
+
+        try {
+            var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return Optional.of((ExecutorService) factory.invoke(null));
+        } catch (ReflectiveOperationException e) {
+            WeatherRestApplication.logger.warn("virtual threads need JDK 21+, using platform threads instead.");
+            return Optional.empty();
+        }
+    }
+}
@@ -1,19 +1,42 @@
 package br.com.weather.weatherrest;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 
+import br.com.weather.weatherrest.data.weather.MeteoClient;
+import br.com.weather.weatherrest.data.weather.WeatherLocation;
 import br.com.weather.weatherrest.data.weather.WeatherManager;
 
 @CrossOrigin
@@ -21,6 +44,10 @@ import br.com.weather.weatherrest.data.weather.WeatherManager;
 @SpringBootApplication
 public class WeatherRestApplication {
     public static final Logger logger = LoggerFactory.getLogger(WeatherRestApplication.class);
+    private static final int MAX_BATCH_IDS = Integer.getInteger("weather.batch.maxIds", 500);
+    private static final int MAX_HOT = Integer.getInteger("weather.hot.maxK", 100);
+    // seconds since the forecast was fetched from meteo
+    private static final String DATA_AGE = "X-Data-Age";
 
     public static void main(String[] args) {
         SpringApplication.run(WeatherRestApplication.class, args);
@@ -29,49 +56,270 @@ public class WeatherRestApplication {
 
     /*
      * name parm or lat & long required, else return error json.
+     * handlers return futures so the servlet thread is released while meteo answers,
+     * and bodies are written straight to the response stream.
      */
     @GetMapping(path = "/search", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<String> search(@RequestParam(name = "name", required = false) String name,
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> search(
+            @RequestParam(name = "name", required = false) String name,
             @RequestParam(name = "lat", required = false) String latitude,
             @RequestParam(name = "long", required = false) String longitude) {
 
         if (name != null) {
-            var locations = WeatherManager.getByName(name);
-            if (locations.isPresent()) {
-                var json = new JsonArray();
-                locations.get().forEach((w) -> {
-                    json.add(w.toJsonObject(false));
-                });
-
-                return new ResponseEntity<String>(json.toString(), HttpStatus.FOUND);
-            }
+            return WeatherManager.getByNameAsync(name)
+                    .thenApply((locations) -> {
+                        if (locations.isPresent()) {
+                            return stream(HttpStatus.FOUND, (out) -> {
+                                out.beginArray();
+                                for (var w : locations.get()) {
+                                    w.writeJson(out, false);
+                                }
+                                out.endArray();
+                            });
+                        }
+                        return stream(HttpStatus.NOT_FOUND, JsonWriter::beginArray, JsonWriter::endArray);
+                    });
         } else if (latitude != null && longitude != null) {
-            var location = WeatherManager.getByCoords(latitude, longitude);
-
-            if (location.isPresent()) {
-                return new ResponseEntity<String>(location.get().toJsonObject(false).toString(), HttpStatus.FOUND);
-            }
+            return WeatherManager.getByCoordsAsync(latitude, longitude)
+                    .thenApply((location) -> {
+                        if (location.isPresent()) {
+                            return stream(HttpStatus.FOUND, (out) -> location.get().writeJson(out, false));
+                        }
+                        return stream(HttpStatus.NOT_FOUND, JsonWriter::beginArray, JsonWriter::endArray);
+                    });
         }
 
-        return new ResponseEntity<String>("[]", HttpStatus.NOT_FOUND);
+        return CompletableFuture.completedFuture(stream(HttpStatus.NOT_FOUND, JsonWriter::beginArray, JsonWriter::endArray));
     }
 
     @GetMapping(path = "/location", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<String> get(@RequestParam(name = "id") String id) {
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> get(@RequestParam(name = "id") String id,
+            @RequestHeader(name = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+            @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestHeader(name = HttpHeaders.IF_MODIFIED_SINCE, required = false) String ifModifiedSince) {
 
         if (id == null)
-            return new ResponseEntity<String>("{}", HttpStatus.BAD_REQUEST);
+            return CompletableFuture.completedFuture(stream(HttpStatus.BAD_REQUEST, JsonWriter::beginObject, JsonWriter::endObject));
 
         try {
             var pId = Integer.valueOf(id);
-            var location = WeatherManager.getById(pId);
-
-            if (location.isPresent()) {
-                return new ResponseEntity<String>(location.get().toJsonObject(true).toString(), HttpStatus.FOUND);
-            }
+            return WeatherManager.getByIdAsync(pId)
+                    .thenApply((location) -> {
+                        if (location.isPresent() && isNotModified(location.get(), ifNoneMatch, ifModifiedSince)) {
+                            var l = location.get();
+                            return validators(ResponseEntity.status(HttpStatus.NOT_MODIFIED), l.getETag(),
+                                    l.getLastUpdated(), l.getStaleAt()).build();
+                        }
+                        if (location.isPresent()) {
+                            return body(HttpStatus.FOUND, location.get(), acceptsGzip(acceptEncoding));
+                        }
+                        return stream(HttpStatus.NOT_FOUND, JsonWriter::beginObject, JsonWriter::endObject);
+                    });
         } catch (Exception e) {
             e.printStackTrace();
         }
-        return new ResponseEntity<String>("{}", HttpStatus.NOT_FOUND);
+        return CompletableFuture.completedFuture(stream(HttpStatus.NOT_FOUND, JsonWriter::beginObject, JsonWriter::endObject));
+    }
+
+    // ids=1,2,3, answers with the locations found, in the order asked
+    @GetMapping(path = "/locations", produces = MediaType.APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> getAll(@RequestParam(name = "ids") String ids) {
+        var list = new ArrayList<Integer>();
+        try {
+            for (var id : ids.split(",")) {
+                if (!id.isBlank()) {
+                    list.add(Integer.valueOf(id.trim()));
+                }
+            }
+        } catch (NumberFormatException e) {
+            return CompletableFuture.completedFuture(stream(HttpStatus.BAD_REQUEST, JsonWriter::beginArray, JsonWriter::endArray));
+        }
+        return locations(list);
+    }
+
+    // same as the get one, with the ids as a json array body
+    @PostMapping(path = "/locations", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> postAll(@RequestBody String body) {
+        var list = new ArrayList<Integer>();
+        try {
+            for (var id : JsonParser.parseString(body).getAsJsonArray()) {
+                list.add(id.getAsInt());
+            }
+        } catch (RuntimeException e) {
+            return CompletableFuture.completedFuture(stream(HttpStatus.BAD_REQUEST, JsonWriter::beginArray, JsonWriter::endArray));
+        }
+        return locations(list);
+    }
+
+    // the k most requested locations lately, with their hit counts
+    @GetMapping(path = "/hot", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> hot(@RequestParam(name = "k", defaultValue = "10") int k) {
+        if (k <= 0 || k > MAX_HOT) {
+            return stream(HttpStatus.BAD_REQUEST, JsonWriter::beginArray, JsonWriter::endArray);
+        }
+
+        var now = System.currentTimeMillis();
+        var hottest = WeatherManager.getHottest(k);
+        return stream(HttpStatus.OK, (out) -> {
+            out.beginArray();
+            for (var w : hottest) {
+                out.beginObject();
+                out.name("id").value(w.getId());
+                out.name("name").value(w.getName());
+                out.name("country_code").value(w.getCountryCode());
+                out.name("hits").value(w.getHits());
+                out.name("hotness").value(w.getHotness(now));
+                out.endObject();
+            }
+            out.endArray();
+        });
+    }
+
+    @GetMapping(path = "/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> stats() {
+        var json = new JsonObject();
+        json.add("upstream", MeteoClient.toJsonObject());
+        json.add("forecast_batches", WeatherManager.getForecastBatcher().toJsonObject());
+        json.add("refresh", WeatherManager.getRefreshScheduler().toJsonObject());
+        json.add("forecast_cache", WeatherManager.getForecastCache().toJsonObject());
+        json.add("response_cache", WeatherManager.getResponseCache().toJsonObject());
+        json.add("storage", WeatherManager.getStorageStats());
+        return new ResponseEntity<String>(json.toString(), HttpStatus.OK);
+    }
+
+    private static ResponseEntity<StreamingResponseBody> stream(HttpStatus status, JsonBody... parts) {
+        return new ResponseEntity<StreamingResponseBody>((output) -> {
+            var out = new JsonWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), 8192));
+            for (var part : parts) {
+                part.write(out);
+            }
+            out.flush();
+        }, status);
+    }
+
+    private static CompletableFuture<ResponseEntity<StreamingResponseBody>> locations(List<Integer> ids) {
+        if (ids.isEmpty() || ids.size() > MAX_BATCH_IDS) {
+            return CompletableFuture.completedFuture(stream(HttpStatus.BAD_REQUEST, JsonWriter::beginArray, JsonWriter::endArray));
+        }
+
+        return WeatherManager.getByIdsAsync(ids)
+                .thenApply((found) -> {
+                    if (found.isEmpty()) {
+                        return stream(HttpStatus.NOT_FOUND, JsonWriter::beginArray, JsonWriter::endArray);
+                    }
+
+                    // each element is the cached /location body, copied as is into the array
+                    return new ResponseEntity<StreamingResponseBody>((output) -> {
+                        var out = new BufferedOutputStream(output, 8192);
+                        out.write('[');
+                        for (int i = 0; i < found.size(); i++) {
+                            if (i > 0) {
+                                out.write(',');
+                            }
+                            out.write(WeatherManager.getLocationBody(found.get(i), false).getBytes());
+                        }
+                        out.write(']');
+                        out.flush();
+                    }, HttpStatus.FOUND);
+                });
+    }
+
+    // pre-encoded location body, served as is from the response cache
+    private static ResponseEntity<StreamingResponseBody> body(HttpStatus status, WeatherLocation location, boolean gzip) {
+        var body = WeatherManager.getLocationBody(location, gzip);
+        var bytes = body.getBytes();
+        // validators of the encoded entry, not of the location, which may have moved on since
+        var builder = validators(ResponseEntity.status(status), body.getETag(), body.getLastUpdated(),
+                body.getStaleAt())
+                .contentLength(bytes.length)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            builder.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return builder.body((StreamingResponseBody) (output) -> output.write(bytes));
+    }
+
+    /*
+     * etag and last-modified come from the forecast version served. max-age is
+     * what's left of the forecast lifetime, so a cache keeps it until it turns
+     * outdated and not longer; an outdated one is no-cache. Age belongs to the
+     * caches, how old the data itself is goes in its own header.
+     */
+    private static ResponseEntity.BodyBuilder validators(ResponseEntity.BodyBuilder builder, String etag,
+            long lastUpdated, long staleAt) {
+        var now = System.currentTimeMillis();
+        var remaining = (staleAt - now) / 1000;
+
+        return builder.eTag(etag)
+                .lastModified(lastUpdated)
+                .header(DATA_AGE, String.valueOf(Math.max(0, now - lastUpdated) / 1000))
+                .cacheControl(staleAt != 0 && remaining > 0
+                        ? CacheControl.maxAge(remaining, TimeUnit.SECONDS).cachePublic()
+                        : CacheControl.noCache());
+    }
+
+    // if-none-match wins over if-modified-since when both are sent
+    private static boolean isNotModified(WeatherLocation location, String ifNoneMatch, String ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            var etag = location.getETag();
+            for (var tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        if (ifModifiedSince != null) {
+            try {
+                var since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+                // http dates have no millis
+                return location.getLastUpdated() / 1000 <= since;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // gzip, or *, listed without q=0; gzip;q=0 and x-gzip don't count
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return false;
+
+        var any = false;
+        for (var token : acceptEncoding.split(",")) {
+            var parts = token.split(";");
+            var coding = parts[0].trim().toLowerCase();
+            var q = 1.0;
+            for (int i = 1; i < parts.length; i++) {
+                var param = parts[i].trim().toLowerCase();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+
+            if (coding.equals("gzip")) {
+                // named explicitly, * doesn't matter anymore
+                return q > 0;
+            }
+            if (coding.equals("*")) {
+                any = q > 0;
+            }
+        }
+        return any;
+    }
+
+    @FunctionalInterface
+    private interface JsonBody {
+        void write(JsonWriter out) throws IOException;
     }
 }
@@ -1,9 +1,11 @@
 package br.com.weather.weatherrest.data.weather;
 
+import java.io.IOException;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 
 public class CurrentWeather {
     private final double temperature;
@@ -41,7 +43,12 @@ public class CurrentWeather {
     }
 
     public boolean canUpdate() {
-        return (System.currentTimeMillis() - this.timestamp) > TimeUnit.HOURS.toMillis(1);
+        return System.currentTimeMillis() > this.getStaleAt();
+    }
+
+    // when meteo has a newer reading for us. the timestamp is unix seconds
+    public long getStaleAt() {
+        return TimeUnit.SECONDS.toMillis(this.timestamp) + TimeUnit.HOURS.toMillis(1);
     }
 
     public JsonObject toJsonObject() {
@@ -54,6 +61,17 @@ public class CurrentWeather {
         return obj;
     }
 
+    public void writeJson(JsonWriter out) throws IOException {
+        out.beginObject();
+        out.name("temperature").value(this.temperature);
+        out.name("windspeed").value(this.windSpeed);
+        out.name("winddirection").value(this.windDirection);
+        out.name("time").value(this.timestamp);
+        out.name("weathercode");
+        this.code.writeJson(out);
+        out.endObject();
+    }
+
     public static Optional<CurrentWeather> fromJSON(JsonObject object) {
         if (object == null)
             return Optional.empty();
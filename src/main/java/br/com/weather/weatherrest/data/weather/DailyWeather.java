@@ -1,5 +1,6 @@
 package br.com.weather.weatherrest.data.weather;
 
+import java.io.IOException;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneId;
@@ -9,6 +10,7 @@ import java.util.Optional;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 
 import br.com.weather.weatherrest.data.weather.builder.DailyWeatherBuilder;
 
@@ -147,6 +149,38 @@ public class DailyWeather {
         return obj;
     }
 
+    public void writeJson(JsonWriter out) throws IOException {
+        out.beginObject();
+        out.name("temperature_2m_max").value(this.maxTemp);
+        out.name("temperature_2m_min").value(this.minTemp);
+        out.name("apparent_temperature_max").value(this.appMaxTemp);
+        out.name("apparent_temperature_min").value(this.appMinTemp);
+        out.name("precipitation_sum").value(this.precipitationSum);
+        out.name("rain_sum").value(this.rainSum);
+        out.name("showers_sum").value(this.showersSum);
+        out.name("snowfall_sum").value(this.snowfallSum);
+        out.name("precipitation_hours").value(this.precipitationHours);
+        out.name("sunrise").value(this.sunrise);
+        out.name("sunset").value(this.sunset);
+        out.name("windspeed_10m_max").value(this.windSpeed);
+        out.name("windgusts_10m_max").value(this.windGust);
+        out.name("winddirection_10m_dominant").value(this.windDirection);
+        out.name("time").value(this.timestamp);
+        out.name("weathercode");
+        this.weatherCode.writeJson(out);
+
+        var hourly = this.hourlyWeather;
+        if (hourly.isPresent()) {
+            out.name("hourly").beginArray();
+            for (var hour : hourly.get()) {
+                hour.writeJson(out);
+            }
+            out.endArray();
+        }
+
+        out.endObject();
+    }
+
     public static Optional<List<DailyWeather>> fromJSONArray(JsonObject object) {
         if (object == null)
             return Optional.empty();
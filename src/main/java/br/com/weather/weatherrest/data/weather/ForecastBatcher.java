@@ -0,0 +1,142 @@
+package br.com.weather.weatherrest.data.weather;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.gson.JsonObject;
+
+/*
+ * gathers forecast fetches for a short window and sends them as one multi
+ * coordinate meteo request. locations are batched by the forecast parts
+ * they need, a batch goes out when its window closes or when it's full.
+ * a window of 0 sends every fetch on its own.
+ */
+public final class ForecastBatcher {
+    private final long windowMillis;
+    private final int maxSize;
+    private final ScheduledExecutorService timer = Executors
+            .newSingleThreadScheduledExecutor(MeteoClient.daemonFactory("meteo-batch-"));
+    private final ReentrantLock lock = new ReentrantLock();
+    // keyed by the parts needed, 1 = current, 2 = daily
+    private final HashMap<Integer, Batch> pending = new HashMap<>(4);
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder locations = new LongAdder();
+
+    public ForecastBatcher(long windowMillis, int maxSize) {
+        this.windowMillis = windowMillis;
+        this.maxSize = maxSize;
+    }
+
+    // locations one upstream request can carry
+    public int getBatchSize() {
+        return this.windowMillis <= 0 ? 1 : this.maxSize;
+    }
+
+    public CompletableFuture<Optional<ForecastData>> submit(WeatherLocation location) {
+        return this.submit(location, (location.canUpdateCurrent() ? 1 : 0) | (location.canUpdateDaily() ? 2 : 0));
+    }
+
+    // parts: 1 = current, 2 = daily
+    public CompletableFuture<Optional<ForecastData>> submit(WeatherLocation location, int parts) {
+        this.locations.increment();
+        if (this.windowMillis <= 0) {
+            this.batches.increment();
+            return MeteoAPI.requestLocationDataBatchAsync(List.of(location), (parts & 1) != 0, (parts & 2) != 0)
+                    .thenApply((list) -> list.isEmpty() ? Optional.<ForecastData>empty() : list.get(0));
+        }
+
+        var future = new CompletableFuture<Optional<ForecastData>>();
+        Batch full = null;
+
+        this.lock.lock();
+        try {
+            var batch = this.pending.get(parts);
+            if (batch == null) {
+                batch = new Batch(parts);
+                this.pending.put(parts, batch);
+                var scheduled = batch;
+                this.timer.schedule(() -> this.flush(scheduled), this.windowMillis, TimeUnit.MILLISECONDS);
+            }
+
+            batch.locations.add(location);
+            batch.futures.add(future);
+            if (batch.locations.size() >= this.maxSize) {
+                this.pending.remove(parts);
+                full = batch;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        if (full != null) {
+            this.send(full);
+        }
+        return future;
+    }
+
+    // sends whatever is waiting without waiting for the window
+    public void flush() {
+        List<Batch> ready;
+        this.lock.lock();
+        try {
+            ready = new ArrayList<>(this.pending.values());
+            this.pending.clear();
+        } finally {
+            this.lock.unlock();
+        }
+        ready.forEach(this::send);
+    }
+
+    public JsonObject toJsonObject() {
+        var obj = new JsonObject();
+        var batches = this.batches.sum();
+        var locations = this.locations.sum();
+        obj.addProperty("window_ms", this.windowMillis);
+        obj.addProperty("requests", batches);
+        obj.addProperty("locations", locations);
+        obj.addProperty("locations_per_request", batches == 0 ? 0 : (double) locations / batches);
+        return obj;
+    }
+
+    private void flush(Batch batch) {
+        this.lock.lock();
+        try {
+            // already sent when it filled up or on an explicit flush
+            if (!this.pending.remove(batch.parts, batch)) {
+                return;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        this.send(batch);
+    }
+
+    private void send(Batch batch) {
+        this.batches.increment();
+        MeteoAPI.requestLocationDataBatchAsync(batch.locations, (batch.parts & 1) != 0, (batch.parts & 2) != 0)
+                .whenComplete((list, e) -> {
+                    for (int i = 0; i < batch.futures.size(); i++) {
+                        batch.futures.get(i).complete(list != null && i < list.size() ? list.get(i) : Optional.empty());
+                    }
+                });
+    }
+
+    private static final class Batch {
+        private final int parts;
+        private final List<WeatherLocation> locations = new ArrayList<>();
+        private final List<CompletableFuture<Optional<ForecastData>>> futures = new ArrayList<>();
+
+        private Batch(int parts) {
+            this.parts = parts;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package br.com.weather.weatherrest.data.weather;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import com.google.gson.JsonObject;
+
+/*
+ * keeps the forecast data held by locations under a heap budget. residents
+ * are kept in lru order, and a newcomer only pushes the lru victim out if
+ * it has been asked for more often (tinylfu admission), so a burst of one
+ * off searches can't flush the hot cities. victims are handed to the
+ * eviction listener, which drops their forecast.
+ *
+ * reads don't take the lock: they go into a lossy ring buffer that is
+ * replayed into the sketch and the lru order in batches, by whichever
+ * thread gets the lock first. a read lost to a full buffer only makes
+ * the order a bit less exact.
+ */
+public final class ForecastCache {
+    private static final int READ_BUFFER = 256, READ_MASK = READ_BUFFER - 1, DRAIN_MASK = 63;
+    private static final long READ_MARK = 1L << 32;
+
+    private final long maxBytes;
+    private final LocationRegistry locations;
+    private final Consumer<List<WeatherLocation>> evictionListener;
+    private final FrequencySketch sketch = new FrequencySketch(1 << 16);
+    private final LinkedHashMap<Integer, Long> resident = new LinkedHashMap<>(256, 0.75f, true);
+    private final Set<Integer> residentIds = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLongArray reads = new AtomicLongArray(READ_BUFFER);
+    private final AtomicLong readCount = new AtomicLong();
+    private long weight;
+
+    private final LongAdder admissions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ForecastCache(long maxBytes, LocationRegistry locations, Consumer<List<WeatherLocation>> evictionListener) {
+        this.maxBytes = maxBytes;
+        this.locations = locations;
+        this.evictionListener = evictionListener;
+    }
+
+    public void recordAccess(WeatherLocation location) {
+        var index = this.readCount.getAndIncrement();
+        this.reads.set((int) (index & READ_MASK), READ_MARK | (location.getId() & 0xFFFFFFFFL));
+
+        // every so often someone replays the buffer, nobody waits for it
+        if ((index & DRAIN_MASK) == DRAIN_MASK && this.lock.tryLock()) {
+            try {
+                this.drainReads();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /*
+     * called once a location got its forecast loaded. returns false when it
+     * lost against the lru victim, its data then only lives until the next
+     * sweep drops it.
+     */
+    public boolean admit(WeatherLocation location) {
+        var id = location.getId();
+        var size = location.estimateSize();
+        var victims = new ArrayList<WeatherLocation>();
+        var admitted = true;
+
+        this.lock.lock();
+        try {
+            this.drainReads();
+            var previous = this.resident.put(id, size);
+            this.residentIds.add(id);
+            if (previous != null) {
+                this.weight += size - previous;
+            } else {
+                this.weight += size;
+            }
+
+            var candidateFrequency = this.sketch.frequency(id);
+            var iterator = this.resident.entrySet().iterator();
+            while (this.weight > this.maxBytes && iterator.hasNext()) {
+                var eldest = iterator.next();
+                if (eldest.getKey() == id) {
+                    continue;
+                }
+
+                if (previous == null && this.sketch.frequency(eldest.getKey()) > candidateFrequency) {
+                    // the victim is hotter than the newcomer, keep it and turn the newcomer away
+                    this.weight -= size;
+                    this.resident.remove(id);
+                    this.residentIds.remove(id);
+                    this.rejections.increment();
+                    admitted = false;
+                    break;
+                }
+
+                iterator.remove();
+                this.residentIds.remove(eldest.getKey());
+                this.weight -= eldest.getValue();
+                this.evictions.increment();
+
+                var victim = this.locations.get(eldest.getKey());
+                if (victim != null) {
+                    victims.add(victim);
+                }
+            }
+            if (admitted && previous == null) {
+                this.admissions.increment();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+
+        if (!victims.isEmpty()) {
+            this.evictionListener.accept(victims);
+        }
+        return admitted;
+    }
+
+    public boolean isResident(int id) {
+        return this.residentIds.contains(id);
+    }
+
+    public void remove(int id) {
+        this.lock.lock();
+        try {
+            var size = this.resident.remove(id);
+            this.residentIds.remove(id);
+            if (size != null) {
+                this.weight -= size;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public JsonObject toJsonObject() {
+        var obj = new JsonObject();
+        this.lock.lock();
+        try {
+            obj.addProperty("entries", this.resident.size());
+            obj.addProperty("bytes", this.weight);
+        } finally {
+            this.lock.unlock();
+        }
+        obj.addProperty("max_bytes", this.maxBytes);
+        obj.addProperty("admissions", this.admissions.sum());
+        obj.addProperty("rejections", this.rejections.sum());
+        obj.addProperty("evictions", this.evictions.sum());
+        return obj;
+    }
+
+    // under the lock
+    private void drainReads() {
+        for (int i = 0; i < READ_BUFFER; i++) {
+            var read = this.reads.getAndSet(i, 0);
+            if (read != 0) {
+                var id = (int) read;
+                this.sketch.increment(id);
+                // refreshes its lru position
+                this.resident.get(id);
+            }
+        }
+    }
+
+    /*
+     * count-min sketch with 4 rows of saturating counters, halved every
+     * sampleSize increments so old popularity fades out. only touched under
+     * the cache lock.
+     */
+    private static final class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x97cb3127, 0xb1a3f5e1, 0xc8a7b9d3, 0x9e3779b9 };
+
+        private final int[][] rows;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        private FrequencySketch(int width) {
+            this.rows = new int[SEEDS.length][width];
+            this.mask = width - 1;
+            this.sampleSize = width * 10;
+        }
+
+        private void increment(int key) {
+            for (int i = 0; i < SEEDS.length; i++) {
+                var index = this.index(key, i);
+                if (this.rows[i][index] < MAX_COUNT) {
+                    this.rows[i][index]++;
+                }
+            }
+
+            if (++this.additions >= this.sampleSize) {
+                this.reset();
+            }
+        }
+
+        private int frequency(int key) {
+            var min = MAX_COUNT;
+            for (int i = 0; i < SEEDS.length; i++) {
+                min = Math.min(min, this.rows[i][this.index(key, i)]);
+            }
+            return min;
+        }
+
+        private void reset() {
+            this.additions = 0;
+            for (var row : this.rows) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>>= 1;
+                }
+            }
+        }
+
+        private int index(int key, int row) {
+            var h = key * SEEDS[row];
+            return (h ^ (h >>> 16)) & this.mask;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package br.com.weather.weatherrest.data.weather;
+
+import java.util.List;
+import java.util.Optional;
+
+/*
+ * one location's worth of meteo forecast response, as read by ForecastReader.
+ */
+public final class ForecastData {
+    private final Optional<String> timezone;
+    private final Optional<CurrentWeather> currentWeather;
+    private final Optional<List<DailyWeather>> dailyWeather;
+    private final Optional<HourlySeries> hourlyWeather;
+
+    public ForecastData(Optional<String> timezone, Optional<CurrentWeather> currentWeather,
+            Optional<List<DailyWeather>> dailyWeather, Optional<HourlySeries> hourlyWeather) {
+        this.timezone = timezone;
+        this.currentWeather = currentWeather;
+        this.dailyWeather = dailyWeather;
+        this.hourlyWeather = hourlyWeather;
+    }
+
+    public Optional<String> getTimezone() {
+        return this.timezone;
+    }
+
+    public Optional<CurrentWeather> getCurrentWeather() {
+        return this.currentWeather;
+    }
+
+    public Optional<List<DailyWeather>> getDailyWeather() {
+        return this.dailyWeather;
+    }
+
+    public Optional<HourlySeries> getHourlyWeather() {
+        return this.hourlyWeather;
+    }
+
+    public boolean isEmpty() {
+        return this.currentWeather.isEmpty() && this.dailyWeather.isEmpty();
+    }
+}
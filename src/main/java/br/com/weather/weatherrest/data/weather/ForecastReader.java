@@ -0,0 +1,219 @@
+package br.com.weather.weatherrest.data.weather;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/*
+ * pull parser for meteo forecast responses. reads the body token by token
+ * straight into primitive columns, then into HourlySeries/DailyWeather, so
+ * there's no full body String nor JsonObject tree in between.
+ */
+public final class ForecastReader {
+
+    public static ForecastData read(Reader reader) throws IOException {
+        var list = readAll(reader);
+        return list.isEmpty() ? new ForecastData(Optional.empty(), Optional.empty(), Optional.empty(),
+                Optional.empty()) : list.get(0);
+    }
+
+    // a request with several coordinates answers with an array, one object per location
+    public static List<ForecastData> readAll(Reader reader) throws IOException {
+        var json = new JsonReader(reader);
+        var list = new ArrayList<ForecastData>();
+
+        if (json.peek() == JsonToken.BEGIN_ARRAY) {
+            json.beginArray();
+            while (json.hasNext()) {
+                list.add(readForecast(json));
+            }
+            json.endArray();
+        } else {
+            list.add(readForecast(json));
+        }
+
+        return list;
+    }
+
+    private static ForecastData readForecast(JsonReader json) throws IOException {
+        Optional<String> timezone = Optional.empty();
+        Optional<CurrentWeather> current = Optional.empty();
+        Map<String, Column> daily = null, hourly = null;
+
+        json.beginObject();
+        while (json.hasNext()) {
+            var name = json.nextName();
+            if (name.equals("timezone")) {
+                timezone = Optional.of(json.nextString());
+            } else if (name.equals("current_weather")) {
+                current = readCurrent(json);
+            } else if (name.equals("daily")) {
+                daily = readColumns(json);
+            } else if (name.equals("hourly")) {
+                hourly = readColumns(json);
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+
+        return new ForecastData(timezone, current, createDaily(daily), createHourly(hourly));
+    }
+
+    private static Optional<CurrentWeather> readCurrent(JsonReader json) throws IOException {
+        double temperature = 0, speed = 0, direction = 0;
+        long time = 0;
+        var code = 0;
+
+        json.beginObject();
+        while (json.hasNext()) {
+            var name = json.nextName();
+            if (json.peek() == JsonToken.NULL) {
+                json.nextNull();
+                continue;
+            }
+
+            if (name.equals("temperature")) {
+                temperature = json.nextDouble();
+            } else if (name.equals("windspeed")) {
+                speed = json.nextDouble();
+            } else if (name.equals("winddirection")) {
+                direction = json.nextDouble();
+            } else if (name.equals("weathercode")) {
+                code = json.nextInt();
+            } else if (name.equals("time")) {
+                time = json.nextLong();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+
+        return Optional.of(new CurrentWeather(temperature, speed, direction, WeatherCode.valueOf(code), time));
+    }
+
+    private static Map<String, Column> readColumns(JsonReader json) throws IOException {
+        var columns = new HashMap<String, Column>();
+
+        json.beginObject();
+        while (json.hasNext()) {
+            var name = json.nextName();
+            if (json.peek() != JsonToken.BEGIN_ARRAY) {
+                json.skipValue();
+                continue;
+            }
+
+            var column = new Column();
+            json.beginArray();
+            while (json.hasNext()) {
+                var token = json.peek();
+                if (token == JsonToken.NUMBER) {
+                    column.add(json.nextDouble());
+                } else if (token == JsonToken.BOOLEAN) {
+                    column.add(json.nextBoolean() ? 1 : 0);
+                } else {
+                    // nulls (e.g. precipitation_probability for past hours) are read as 0
+                    json.skipValue();
+                    column.add(0);
+                }
+            }
+            json.endArray();
+
+            columns.put(name, column);
+        }
+        json.endObject();
+
+        return columns;
+    }
+
+    private static Optional<HourlySeries> createHourly(Map<String, Column> columns) {
+        if (columns == null || !columns.containsKey("time")) {
+            return Optional.empty();
+        }
+
+        var time = columns.get("time");
+        var series = new HourlySeries(time.size);
+        for (int i = 0; i < time.size; i++) {
+            series.setTimestamp(i, (long) time.values[i]);
+        }
+
+        for (var variable : HourlyVariable.all()) {
+            var column = columns.get(variable.getKey());
+            if (column == null) {
+                continue;
+            }
+            for (int i = 0; i < series.size(); i++) {
+                series.set(variable, i, column.get(i));
+            }
+        }
+
+        var code = columns.get("weathercode");
+        var isDay = columns.get("is_day");
+        for (int i = 0; i < series.size(); i++) {
+            series.setWeatherCode(i, WeatherCode.valueOf(code == null ? -1 : (int) code.get(i)));
+            series.setDay(i, isDay != null && isDay.get(i) != 0);
+        }
+
+        return Optional.of(series);
+    }
+
+    private static Optional<List<DailyWeather>> createDaily(Map<String, Column> columns) {
+        if (columns == null || !columns.containsKey("time")) {
+            return Optional.empty();
+        }
+
+        var time = columns.get("time");
+        var list = new ArrayList<DailyWeather>(time.size);
+        for (int i = 0; i < time.size; i++) {
+            list.add(DailyWeather.getBuilder()
+                    .timestamp((long) time.get(i))
+                    .maxTemperature(get(columns, "temperature_2m_max", i))
+                    .minTemperature(get(columns, "temperature_2m_min", i))
+                    .appMaxTemperature(get(columns, "apparent_temperature_max", i))
+                    .appMinTemperature(get(columns, "apparent_temperature_min", i))
+                    .precipitationSum(get(columns, "precipitation_sum", i))
+                    .rainSum(get(columns, "rain_sum", i))
+                    .showersSum(get(columns, "showers_sum", i))
+                    .snowfallSum(get(columns, "snowfall_sum", i))
+                    .precipitationHours(get(columns, "precipitation_hours", i))
+                    .weatherCode(WeatherCode.valueOf((int) get(columns, "weathercode", i)))
+                    .sunrise((long) get(columns, "sunrise", i))
+                    .sunset((long) get(columns, "sunset", i))
+                    .windSpeed(get(columns, "windspeed_10m_max", i))
+                    .windGust(get(columns, "windgusts_10m_max", i))
+                    .windDirection(get(columns, "winddirection_10m_dominant", i))
+                    .build());
+        }
+
+        return Optional.of(list);
+    }
+
+    private static double get(Map<String, Column> columns, String key, int index) {
+        var column = columns.get(key);
+        return column == null ? 0 : column.get(index);
+    }
+
+    private static final class Column {
+        private double[] values = new double[32];
+        private int size;
+
+        private void add(double value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.size << 1);
+            }
+            this.values[this.size++] = value;
+        }
+
+        private double get(int index) {
+            return index < this.size ? this.values[index] : 0;
+        }
+    }
+}
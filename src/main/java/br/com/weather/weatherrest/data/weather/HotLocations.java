@@ -0,0 +1,66 @@
+package br.com.weather.weatherrest.data.weather;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * the ids with the highest hotness rank seen since boot, at most capacity
+ * of them. hotness decays at the same rate for every location, so a rank
+ * only moves when its location is accessed and the order holds in between:
+ * updating it on access is enough, nobody has to scan the registry.
+ *
+ * members just raise their rank. a newcomer only takes the lock when it
+ * beats the lowest member, which it then replaces.
+ */
+public final class HotLocations {
+    private final int capacity;
+    private final ConcurrentHashMap<Integer, Double> ranks = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // lowest member rank once full, can lag behind since members only go up
+    private volatile double floor = Double.NEGATIVE_INFINITY;
+
+    public HotLocations(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public void update(int id, double rank) {
+        if (this.ranks.computeIfPresent(id, (k, v) -> Math.max(v, rank)) != null) {
+            return;
+        }
+        if (this.ranks.size() >= this.capacity && rank <= this.floor) {
+            return;
+        }
+
+        this.lock.lock();
+        try {
+            this.ranks.merge(id, rank, Math::max);
+            if (this.ranks.size() > this.capacity) {
+                this.ranks.remove(this.lowest());
+            }
+            if (this.ranks.size() >= this.capacity) {
+                this.floor = this.ranks.get(this.lowest());
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public List<Integer> getIds() {
+        return new ArrayList<>(this.ranks.keySet());
+    }
+
+    // only called with the lock held, so nobody else adds or removes meanwhile
+    private int lowest() {
+        var id = 0;
+        var min = Double.POSITIVE_INFINITY;
+        for (var entry : this.ranks.entrySet()) {
+            if (entry.getValue() <= min) {
+                min = entry.getValue();
+                id = entry.getKey();
+            }
+        }
+        return id;
+    }
+}
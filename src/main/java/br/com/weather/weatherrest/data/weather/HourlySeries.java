@@ -0,0 +1,131 @@
+package br.com.weather.weatherrest.data.weather;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/*
+ * columnar hourly forecast of one location: a float array per variable plus
+ * the timestamps, codes and day flags. HourlyWeather is just a (series, row)
+ * view over it, so a 7 day forecast is a couple dozen arrays instead of
+ * 168 objects with 20 fields each.
+ */
+public final class HourlySeries {
+    private static final WeatherCode[] CODES = WeatherCode.values();
+
+    private final int size;
+    private final long[] timestamps;
+    private final float[][] values;
+    private final byte[] codes;
+    private final boolean[] day;
+
+    public HourlySeries(int size) {
+        this.size = size;
+        this.timestamps = new long[size];
+        this.values = new float[HourlyVariable.all().length][size];
+        this.codes = new byte[size];
+        this.day = new boolean[size];
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public long getTimestamp(int row) {
+        return this.timestamps[row];
+    }
+
+    public float getFloat(HourlyVariable variable, int row) {
+        return this.values[variable.ordinal()][row];
+    }
+
+    // values come in as decimals, widen through their shortest float text so 21.3 stays 21.3
+    public double get(HourlyVariable variable, int row) {
+        return Double.parseDouble(Float.toString(this.values[variable.ordinal()][row]));
+    }
+
+    public WeatherCode getWeatherCode(int row) {
+        return CODES[this.codes[row]];
+    }
+
+    public boolean isDay(int row) {
+        return this.day[row];
+    }
+
+    public void setTimestamp(int row, long timestamp) {
+        this.timestamps[row] = timestamp;
+    }
+
+    public void set(HourlyVariable variable, int row, double value) {
+        this.values[variable.ordinal()][row] = (float) value;
+    }
+
+    public void setWeatherCode(int row, WeatherCode code) {
+        this.codes[row] = (byte) code.ordinal();
+    }
+
+    public void setDay(int row, boolean day) {
+        this.day[row] = day;
+    }
+
+    public void setRow(int row, JsonObject object) {
+        this.timestamps[row] = object.get("time").getAsLong();
+        for (var variable : HourlyVariable.all()) {
+            this.values[variable.ordinal()][row] = object.get(variable.getKey()).getAsFloat();
+        }
+        this.setWeatherCode(row, WeatherCode.valueOf(object.getAsJsonObject("weathercode").get("code").getAsInt()));
+        this.day[row] = asBoolean(object.get("is_day"));
+    }
+
+    // meteo sends is_day as 0/1, the stored json has it as a boolean
+    public static boolean asBoolean(JsonElement element) {
+        var primitive = element.getAsJsonPrimitive();
+        return primitive.isBoolean() ? primitive.getAsBoolean() : primitive.getAsInt() != 0;
+    }
+
+    public HourlyWeather getRow(int row) {
+        return new HourlyWeather(this, row);
+    }
+
+    // copy of rows [from, to)
+    public HourlySeries slice(int from, int to) {
+        var slice = new HourlySeries(to - from);
+        System.arraycopy(this.timestamps, from, slice.timestamps, 0, to - from);
+        for (int i = 0; i < this.values.length; i++) {
+            System.arraycopy(this.values[i], from, slice.values[i], 0, to - from);
+        }
+        System.arraycopy(this.codes, from, slice.codes, 0, to - from);
+        System.arraycopy(this.day, from, slice.day, 0, to - from);
+        return slice;
+    }
+
+    // rows [from, to) as HourlyWeather views, created on access
+    public List<HourlyWeather> view(int from, int to) {
+        return new View(from, to);
+    }
+
+    private final class View extends AbstractList<HourlyWeather> implements RandomAccess {
+        private final int from, to;
+
+        private View(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public HourlyWeather get(int index) {
+            if (index < 0 || index >= this.to - this.from) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return getRow(this.from + index);
+        }
+
+        @Override
+        public int size() {
+            return this.to - this.from;
+        }
+    }
+}
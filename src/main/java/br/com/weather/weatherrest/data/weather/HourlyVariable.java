@@ -0,0 +1,48 @@
+package br.com.weather.weatherrest.data.weather;
+
+/*
+ * the numeric hourly variables, in the order they're serialized. each one
+ * is a float column in HourlySeries. scale is how many steps per unit the
+ * stored encoding keeps, 10 = 0.1 precision, enough for what meteo sends.
+ */
+public enum HourlyVariable {
+    TEMPERATURE("temperature_2m", 10),
+    APPARENT_TEMPERATURE("apparent_temperature", 10),
+    HUMIDITY("relativehumidity_2m", 1),
+    VISIBILITY("visibility", 1),
+    PRESSURE_MSL("pressure_msl", 10),
+    SURFACE_PRESSURE("surface_pressure", 10),
+    CLOUD_COVER("cloudcover", 1),
+    WIND_SPEED("windspeed_10m", 100),
+    WIND_DIRECTION("winddirection_10m", 1),
+    WIND_GUSTS("windgusts_10m", 100),
+    PRECIPITATION("precipitation", 100),
+    PRECIPITATION_PROBABILITY("precipitation_probability", 1),
+    SNOWFALL("snowfall", 100),
+    RAIN("rain", 100),
+    SHOWERS("showers", 100),
+    SNOW_DEPTH("snow_depth", 100),
+    FREEZING_LEVEL_HEIGHT("freezinglevel_height", 1);
+
+    private static final HourlyVariable[] VALUES = values();
+
+    private final String key;
+    private final int scale;
+
+    HourlyVariable(String key, int scale) {
+        this.key = key;
+        this.scale = scale;
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    public int getScale() {
+        return this.scale;
+    }
+
+    public static HourlyVariable[] all() {
+        return VALUES;
+    }
+}
@@ -1,238 +1,196 @@
 package br.com.weather.weatherrest.data.weather;
 
+import java.io.IOException;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 
 import br.com.weather.weatherrest.data.weather.builder.HourlyWeatherBuilder;
 
 public class HourlyWeather {
-    private final double temperature, appTemp;
-    private final double humidity, visibility;
-    private final double pressureSeaLevel, surfacePressure;
-    private final double cloudCover, windSpeed, windGusts, windDirection;
-    private final double precipitation, precipitationProbability, snowfall, rain, showers, snowDepth;
-    private final WeatherCode weatherCode;
-    private final double freezingLevelHeight;
-    private final boolean isDay;
-    private final long timestamp;
+    private final HourlySeries series;
+    private final int row;
+
+    public HourlyWeather(HourlySeries series, int row) {
+        this.series = series;
+        this.row = row;
+    }
 
     public HourlyWeather(HourlyWeatherBuilder builder) {
-        this.temperature = builder.getTemperature();
-        this.appTemp = builder.getAppTemp();
-        this.humidity = builder.getHumidity();
-        this.visibility = builder.getVisibility();
-        this.pressureSeaLevel = builder.getPressureSeaLevel();
-        this.surfacePressure = builder.getSurfacePressure();
-        this.cloudCover = builder.getCloudcover();
-        this.windSpeed = builder.getWindSpeed();
-        this.windGusts = builder.getWindGusts();
-        this.windDirection = builder.getWindDirection();
-        this.precipitation = builder.getPrecipitation();
-        this.precipitationProbability = builder.getPrecipitationProbability();
-        this.snowfall = builder.getSnowfall();
-        this.rain = builder.getRain();
-        this.showers = builder.getShowers();
-        this.snowDepth = builder.getSnowDepth();
-        this.weatherCode = builder.getWeatherCode();
-        this.freezingLevelHeight = builder.getFreezingLevelHeight();
-        this.isDay = builder.isDay();
-        this.timestamp = builder.getTimestamp();
+        this.series = new HourlySeries(1);
+        this.row = 0;
+
+        this.series.setTimestamp(0, builder.getTimestamp());
+        this.series.set(HourlyVariable.TEMPERATURE, 0, builder.getTemperature());
+        this.series.set(HourlyVariable.APPARENT_TEMPERATURE, 0, builder.getAppTemp());
+        this.series.set(HourlyVariable.HUMIDITY, 0, builder.getHumidity());
+        this.series.set(HourlyVariable.VISIBILITY, 0, builder.getVisibility());
+        this.series.set(HourlyVariable.PRESSURE_MSL, 0, builder.getPressureSeaLevel());
+        this.series.set(HourlyVariable.SURFACE_PRESSURE, 0, builder.getSurfacePressure());
+        this.series.set(HourlyVariable.CLOUD_COVER, 0, builder.getCloudcover());
+        this.series.set(HourlyVariable.WIND_SPEED, 0, builder.getWindSpeed());
+        this.series.set(HourlyVariable.WIND_GUSTS, 0, builder.getWindGusts());
+        this.series.set(HourlyVariable.WIND_DIRECTION, 0, builder.getWindDirection());
+        this.series.set(HourlyVariable.PRECIPITATION, 0, builder.getPrecipitation());
+        this.series.set(HourlyVariable.PRECIPITATION_PROBABILITY, 0, builder.getPrecipitationProbability());
+        this.series.set(HourlyVariable.SNOWFALL, 0, builder.getSnowfall());
+        this.series.set(HourlyVariable.RAIN, 0, builder.getRain());
+        this.series.set(HourlyVariable.SHOWERS, 0, builder.getShowers());
+        this.series.set(HourlyVariable.SNOW_DEPTH, 0, builder.getSnowDepth());
+        this.series.set(HourlyVariable.FREEZING_LEVEL_HEIGHT, 0, builder.getFreezingLevelHeight());
+        this.series.setWeatherCode(0, builder.getWeatherCode());
+        this.series.setDay(0, builder.isDay());
+    }
+
+    public double get(HourlyVariable variable) {
+        return this.series.get(variable, this.row);
     }
 
     public double getPrecipitationProbability() {
-        return this.precipitationProbability;
+        return this.series.get(HourlyVariable.PRECIPITATION_PROBABILITY, this.row);
     }
 
     public boolean isDay() {
-        return this.isDay;
+        return this.series.isDay(this.row);
     }
 
     public long getTimestamp() {
-        return this.timestamp;
+        return this.series.getTimestamp(this.row);
     }
 
     public double getTemperature() {
-        return temperature;
+        return this.series.get(HourlyVariable.TEMPERATURE, this.row);
     }
 
     public double getAppTemp() {
-        return appTemp;
+        return this.series.get(HourlyVariable.APPARENT_TEMPERATURE, this.row);
     }
 
     public double getHumidity() {
-        return humidity;
+        return this.series.get(HourlyVariable.HUMIDITY, this.row);
     }
 
     public double getVisibility() {
-        return this.visibility;
+        return this.series.get(HourlyVariable.VISIBILITY, this.row);
     }
 
     public double getPressureSeaLevel() {
-        return pressureSeaLevel;
+        return this.series.get(HourlyVariable.PRESSURE_MSL, this.row);
     }
 
     public double getSurfacePressure() {
-        return surfacePressure;
+        return this.series.get(HourlyVariable.SURFACE_PRESSURE, this.row);
     }
 
     public double getCloudcover() {
-        return this.cloudCover;
+        return this.series.get(HourlyVariable.CLOUD_COVER, this.row);
     }
 
     public double getWindSpeed() {
-        return this.windSpeed;
+        return this.series.get(HourlyVariable.WIND_SPEED, this.row);
     }
 
     public double getWindGusts() {
-        return this.windGusts;
+        return this.series.get(HourlyVariable.WIND_GUSTS, this.row);
     }
 
     public double getWindDirection() {
-        return this.windDirection;
+        return this.series.get(HourlyVariable.WIND_DIRECTION, this.row);
     }
 
     public double getPrecipitation() {
-        return precipitation;
+        return this.series.get(HourlyVariable.PRECIPITATION, this.row);
     }
 
     public double getSnowfall() {
-        return snowfall;
+        return this.series.get(HourlyVariable.SNOWFALL, this.row);
     }
 
     public double getRain() {
-        return rain;
+        return this.series.get(HourlyVariable.RAIN, this.row);
     }
 
     public double getShowers() {
-        return showers;
+        return this.series.get(HourlyVariable.SHOWERS, this.row);
     }
 
     public double getSnowDepth() {
-        return snowDepth;
+        return this.series.get(HourlyVariable.SNOW_DEPTH, this.row);
     }
 
     public WeatherCode getWeatherCode() {
-        return weatherCode;
+        return this.series.getWeatherCode(this.row);
     }
 
     public double getFreezingLevelHeight() {
-        return freezingLevelHeight;
+        return this.series.get(HourlyVariable.FREEZING_LEVEL_HEIGHT, this.row);
     }
 
     public LocalDateTime getLocalDateTime(String timezone) {
-        return LocalDateTime.ofInstant(Instant.ofEpochSecond(this.timestamp), ZoneId.of(timezone));
+        return LocalDateTime.ofInstant(Instant.ofEpochSecond(this.getTimestamp()), ZoneId.of(timezone));
     }
 
     public JsonObject toJSONObject() {
         var object = new JsonObject();
 
-        object.addProperty("temperature_2m", this.temperature);
-        object.addProperty("apparent_temperature", this.appTemp);
-        object.addProperty("relativehumidity_2m", this.humidity);
-        object.addProperty("visibility", this.visibility);
-        object.addProperty("pressure_msl", this.pressureSeaLevel);
-        object.addProperty("surface_pressure", this.surfacePressure);
-        object.addProperty("cloudcover", this.cloudCover);
-        object.addProperty("windspeed_10m", this.windSpeed);
-        object.addProperty("winddirection_10m", this.windDirection);
-        object.addProperty("windgusts_10m", this.windGusts);
-        object.addProperty("precipitation", this.precipitation);
-        object.addProperty("precipitation_probability", this.precipitationProbability);
-        object.addProperty("snowfall", this.snowfall);
-        object.addProperty("rain", this.rain);
-        object.addProperty("showers", this.showers);
-        object.addProperty("snow_depth", this.snowDepth);
-        object.addProperty("freezinglevel_height", this.freezingLevelHeight);
-        object.addProperty("is_day", this.isDay);
-        object.addProperty("time", this.timestamp);
-        object.add("weathercode", this.weatherCode.toJsonObject());
+        for (var variable : HourlyVariable.all()) {
+            object.addProperty(variable.getKey(), this.series.getFloat(variable, this.row));
+        }
+        object.addProperty("is_day", this.isDay());
+        object.addProperty("time", this.getTimestamp());
+        object.add("weathercode", this.getWeatherCode().toJsonObject());
 
         return object;
     }
 
+    public void writeJson(JsonWriter out) throws IOException {
+        out.beginObject();
+        for (var variable : HourlyVariable.all()) {
+            out.name(variable.getKey()).value(Float.valueOf(this.series.getFloat(variable, this.row)));
+        }
+        out.name("is_day").value(this.isDay());
+        out.name("time").value(this.getTimestamp());
+        out.name("weathercode");
+        this.getWeatherCode().writeJson(out);
+        out.endObject();
+    }
+
     public static Optional<List<HourlyWeather>> fromJSONArray(JsonObject hourly) {
         if (hourly == null)
             return Optional.empty();
 
-        var hourlyArray = new ArrayList<HourlyWeather>();
         var hours = hourly.get("time").getAsJsonArray();
-        var temp = hourly.get("temperature_2m").getAsJsonArray();
-        var humi = hourly.get("relativehumidity_2m").getAsJsonArray();
-        var appTemp = hourly.get("apparent_temperature").getAsJsonArray();
-        var precipitation = hourly.get("precipitation").getAsJsonArray();
-        var precipitationProbability = hourly.get("precipitation_probability").getAsJsonArray();
-        var rain = hourly.get("rain").getAsJsonArray();
-        var showers = hourly.get("showers").getAsJsonArray();
-        var snowfall = hourly.get("snowfall").getAsJsonArray();
-        var snow_depth = hourly.get("snow_depth").getAsJsonArray();
-        var freezeLvl = hourly.get("freezinglevel_height").getAsJsonArray();
+        var series = new HourlySeries(hours.size());
+
+        for (var variable : HourlyVariable.all()) {
+            var column = hourly.get(variable.getKey()).getAsJsonArray();
+            for (int i = 0; i < hours.size(); i++) {
+                // read as 0 like ForecastReader does, meteo sends null for past precipitation_probability
+                var value = column.get(i);
+                series.set(variable, i, value.isJsonNull() ? 0 : value.getAsFloat());
+            }
+        }
+
         var code = hourly.get("weathercode").getAsJsonArray();
-        var pressureMSL = hourly.get("pressure_msl").getAsJsonArray();
-        var surface = hourly.get("surface_pressure").getAsJsonArray();
-        var cloudcover = hourly.get("cloudcover").getAsJsonArray();
-        var visibility = hourly.get("visibility").getAsJsonArray();
-        var speed10m = hourly.get("windspeed_10m").getAsJsonArray();
-        var dir10 = hourly.get("winddirection_10m").getAsJsonArray();
-        var gust = hourly.get("windgusts_10m").getAsJsonArray();
         var isDay = hourly.get("is_day").getAsJsonArray();
-
         for (int i = 0; i < hours.size(); i++) {
-            hourlyArray.add(getBuilder()
-                    .timestamp(hours.get(i).getAsLong())
-                    .temperature(temp.get(i).getAsDouble())
-                    .appTemperature(appTemp.get(i).getAsDouble())
-                    .humidity(humi.get(i).getAsDouble())
-                    .visibility(visibility.get(i).getAsDouble())
-                    .pressureSeaLevel(pressureMSL.get(i).getAsDouble())
-                    .pressureSurface(surface.get(i).getAsDouble())
-                    .cloudCover(cloudcover.get(i).getAsDouble())
-                    .windSpeed(speed10m.get(i).getAsDouble())
-                    .windDirection(dir10.get(i).getAsDouble())
-                    .precipitation(precipitation.get(i).getAsDouble())
-                    .precipitationProbability(precipitationProbability.get(i).getAsDouble())
-                    .snowfall(snowfall.get(i).getAsDouble())
-                    .rain(rain.get(i).getAsDouble())
-                    .showers(showers.get(i).getAsDouble())
-                    .snowDepth(snow_depth.get(i).getAsDouble())
-                    .weatherCode(WeatherCode.valueOf(code.get(i).getAsInt()))
-                    .freezingLevelHeight(freezeLvl.get(i).getAsDouble())
-                    .windGusts(gust.get(i).getAsDouble())
-                    .isDay(isDay.get(i).getAsBoolean())
-                    .build());
+            series.setTimestamp(i, hours.get(i).getAsLong());
+            series.setWeatherCode(i, WeatherCode.valueOf(code.get(i).getAsInt()));
+            series.setDay(i, HourlySeries.asBoolean(isDay.get(i)));
         }
 
-        return Optional.of(hourlyArray);
+        return Optional.of(series.view(0, series.size()));
     }
 
     public static Optional<HourlyWeather> fromJSON(JsonObject object) {
-        return Optional.of(getBuilder()
-                .timestamp(object.get("time").getAsLong())
-                .temperature(object.get("temperature_2m").getAsDouble())
-                .appTemperature(object.get("apparent_temperature").getAsDouble())
-                .humidity(object.get("relativehumidity_2m").getAsDouble())
-                .visibility(object.get("visibility").getAsDouble())
-                .pressureSeaLevel(object.get("pressure_msl").getAsDouble())
-                .pressureSurface(object.get("surface_pressure").getAsDouble())
-                .cloudCover(object.get("cloudcover").getAsDouble())
-                .windSpeed(object.get("windspeed_10m").getAsDouble())
-                .windDirection(object.get("winddirection_10m").getAsDouble())
-                .precipitation(object.get("precipitation").getAsDouble())
-                .precipitationProbability(object.get("precipitation_probability").getAsDouble())
-                .snowfall(object.get("snowfall").getAsDouble())
-                .rain(object.get("rain").getAsDouble())
-                .showers(object.get("showers").getAsDouble())
-                .snowDepth(object.get("snow_depth").getAsDouble())
-                .weatherCode(WeatherCode.valueOf(object.getAsJsonObject("weathercode").get("code").getAsInt()))
-                .freezingLevelHeight(object.get("freezinglevel_height").getAsDouble())
-                .windGusts(object.get("windgusts_10m").getAsDouble())
-                .isDay(object.get("is_day").getAsBoolean())
-                .build());
+        var series = new HourlySeries(1);
+        series.setRow(0, object);
+        return Optional.of(series.getRow(0));
     }
 
     public static HourlyWeatherBuilder getBuilder() {
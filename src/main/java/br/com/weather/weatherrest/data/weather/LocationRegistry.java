@@ -0,0 +1,203 @@
+package br.com.weather.weatherrest.data.weather;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/*
+ * int keyed map of the known locations, split in stripes that each own a
+ * chained hash table. reads never lock: buckets hold immutable node chains
+ * published through volatile array slots, so a reader either sees a chain
+ * before or after a write, never half of it. writes only lock their stripe.
+ */
+public final class LocationRegistry {
+    private static final int INITIAL_BUCKETS = 16;
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+
+    public LocationRegistry() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    public LocationRegistry(int concurrency) {
+        var count = 1;
+        while (count < concurrency) {
+            count <<= 1;
+        }
+
+        this.stripes = new Stripe[count];
+        this.stripeShift = 32 - Integer.numberOfTrailingZeros(count);
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    public WeatherLocation get(int id) {
+        var hash = spread(id);
+        return this.stripeFor(hash).get(id, hash);
+    }
+
+    public boolean contains(int id) {
+        return this.get(id) != null;
+    }
+
+    /*
+     * returns the location already registered under the same id, or null if
+     * the given one was inserted.
+     */
+    public WeatherLocation putIfAbsent(WeatherLocation location) {
+        var hash = spread(location.getId());
+        return this.stripeFor(hash).putIfAbsent(location, hash);
+    }
+
+    public WeatherLocation remove(int id) {
+        var hash = spread(id);
+        return this.stripeFor(hash).remove(id, hash);
+    }
+
+    public int size() {
+        var size = 0;
+        for (var stripe : this.stripes) {
+            size += stripe.size;
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    // weakly consistent: sees every location present when it started, may or
+    // may not see the ones inserted meanwhile, never throws
+    public void forEach(Consumer<WeatherLocation> action) {
+        for (var stripe : this.stripes) {
+            var table = stripe.table;
+            for (int i = 0; i < table.length(); i++) {
+                for (var node = table.get(i); node != null; node = node.next) {
+                    action.accept(node.location);
+                }
+            }
+        }
+    }
+
+    public List<WeatherLocation> values() {
+        var list = new ArrayList<WeatherLocation>(this.size());
+        this.forEach(list::add);
+        return list;
+    }
+
+    private Stripe stripeFor(int hash) {
+        return this.stripes[this.stripeShift == 32 ? 0 : hash >>> this.stripeShift];
+    }
+
+    private static int spread(int id) {
+        var h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Node {
+        private final int id;
+        private final WeatherLocation location;
+        private final Node next;
+
+        private Node(int id, WeatherLocation location, Node next) {
+            this.id = id;
+            this.location = location;
+            this.next = next;
+        }
+    }
+
+    private static final class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile AtomicReferenceArray<Node> table = new AtomicReferenceArray<>(INITIAL_BUCKETS);
+        private volatile int size;
+
+        private WeatherLocation get(int id, int hash) {
+            var table = this.table;
+            for (var node = table.get(hash & (table.length() - 1)); node != null; node = node.next) {
+                if (node.id == id) {
+                    return node.location;
+                }
+            }
+            return null;
+        }
+
+        private WeatherLocation putIfAbsent(WeatherLocation location, int hash) {
+            var id = location.getId();
+            this.lock.lock();
+            try {
+                var table = this.table;
+                var index = hash & (table.length() - 1);
+                var head = table.get(index);
+                for (var node = head; node != null; node = node.next) {
+                    if (node.id == id) {
+                        return node.location;
+                    }
+                }
+
+                table.set(index, new Node(id, location, head));
+                this.size++;
+
+                if (this.size > table.length() * 3 / 4) {
+                    this.resize(table);
+                }
+                return null;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        private WeatherLocation remove(int id, int hash) {
+            this.lock.lock();
+            try {
+                var table = this.table;
+                var index = hash & (table.length() - 1);
+                var head = table.get(index);
+
+                WeatherLocation removed = null;
+                for (var node = head; node != null; node = node.next) {
+                    if (node.id == id) {
+                        removed = node.location;
+                        break;
+                    }
+                }
+
+                if (removed == null) {
+                    return null;
+                }
+
+                // rebuild the chain without the removed node, readers keep
+                // walking the old one untouched
+                Node chain = null;
+                for (var node = head; node != null; node = node.next) {
+                    if (node.id != id) {
+                        chain = new Node(node.id, node.location, chain);
+                    }
+                }
+
+                table.set(index, chain);
+                this.size--;
+                return removed;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        private void resize(AtomicReferenceArray<Node> old) {
+            var table = new AtomicReferenceArray<Node>(old.length() << 1);
+            var mask = table.length() - 1;
+
+            for (int i = 0; i < old.length(); i++) {
+                for (var node = old.get(i); node != null; node = node.next) {
+                    var index = spread(node.id) & mask;
+                    table.set(index, new Node(node.id, node.location, table.get(index)));
+                }
+            }
+
+            this.table = table;
+        }
+    }
+}
@@ -1,68 +1,113 @@
 package br.com.weather.weatherrest.data.weather;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLEncoder;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
-import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import br.com.weather.weatherrest.WeatherRestApplication;
 
 public final class MeteoAPI {
     private static final String geoUsername = "bieel1503";
+    // overridable so the app can be pointed at a mirror or a local fake
+    private static final String GEOCODING_URL = System.getProperty("weather.meteo.geocodingUrl",
+            "https://geocoding-api.open-meteo.com/v1/search");
+    private static final String FORECAST_URL = System.getProperty("weather.meteo.forecastUrl",
+            "https://api.open-meteo.com/v1/forecast");
 
-    public static Optional<List<WeatherLocation>> requestLocationByName(String name) {
+    public static CompletableFuture<Optional<List<WeatherLocation>>> requestLocationByNameAsync(String name) {
         try {
-            var encodedName = URLEncoder.encode(name, "UTF-8");
-            var apiUrl = URI
-                    .create("https://geocoding-api.open-meteo.com/v1/search?name=" + encodedName + "&count=100");
-            var client = HttpClient.newHttpClient();
-            var request = HttpRequest.newBuilder(apiUrl).GET().build();
-            var response = client.send(request, BodyHandlers.ofString());
-            if (response.statusCode() != 200) {
-                WeatherRestApplication.logger
-                        .error("searchByName: statusCode = " + response.statusCode() + ", body = " + response.body());
-                return Optional.empty();
-            }
+            var request = MeteoClient.newRequest(locationByNameUri(name));
+            return MeteoClient.sendAsync(request, BodyHandlers.ofString())
+                    .thenApply(MeteoAPI::parseLocationsByName)
+                    .exceptionally(MeteoAPI::failed);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return CompletableFuture.completedFuture(Optional.empty());
+    }
 
-            var object = JsonParser.parseString(response.body()).getAsJsonObject();
-            if (!object.isJsonNull() && object.has("results")) {
-                var results = object.get("results").getAsJsonArray();
-                if (!results.isEmpty()) {
-                    var list = new ArrayList<WeatherLocation>();
-                    for (JsonElement e : results) {
-                        list.add(WeatherLocation.fromJSON(e.getAsJsonObject()));
-                    }
-                    return Optional.of(list);
-                }
-            }
+    /*
+     * one request for several locations, meteo answers with one forecast per
+     * coordinate pair in the same order. the result is empty when the request
+     * failed, callers match it by index.
+     */
+    public static CompletableFuture<List<Optional<ForecastData>>> requestLocationDataBatchAsync(
+            List<WeatherLocation> locations, boolean current, boolean daily) {
+        try {
+            var request = MeteoClient.newRequest(locationDataUri(locations, current, daily));
+            return MeteoClient.sendAsync(request, BodyHandlers.ofInputStream())
+                    .thenApplyAsync(MeteoAPI::parseLocationDataBatch, MeteoClient.getBodyExecutor())
+                    .exceptionally(MeteoAPI::failedBatch);
         } catch (Exception e) {
             e.printStackTrace();
         }
-        return Optional.empty();
+        return CompletableFuture.completedFuture(List.of());
     }
 
-    public static Optional<JsonObject> requestLocationData(WeatherLocation location) {
-        var link = new StringBuilder("https://api.open-meteo.com/v1/forecast?timeformat=unixtime")
+    public static CompletableFuture<Optional<WeatherLocation>> requestLocationByCoodsAsync(String latitude,
+            String longitude) {
+        try {
+            var request = MeteoClient.newRequest(locationByCoordsUri(latitude, longitude));
+            return MeteoClient.sendAsync(request, BodyHandlers.ofString())
+                    .thenApply(MeteoAPI::parseLocationByCoords)
+                    .exceptionally(MeteoAPI::failed);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return CompletableFuture.completedFuture(Optional.empty());
+    }
+
+    public static String normalize(String str) {
+        if (Normalizer.isNormalized(str, Form.NFKD))
+            return str;
+        return Normalizer.normalize(str, Form.NFKD).replaceAll("\\p{M}", "");
+    }
+
+    private static URI locationByNameUri(String name) throws UnsupportedEncodingException {
+        var encodedName = URLEncoder.encode(name, "UTF-8");
+        return URI.create(GEOCODING_URL + "?name=" + encodedName + "&count=100");
+    }
+
+    private static URI locationDataUri(List<WeatherLocation> locations, boolean current, boolean daily) {
+        var latitudes = new StringBuilder();
+        var longitudes = new StringBuilder();
+        for (var location : locations) {
+            if (latitudes.length() > 0) {
+                latitudes.append(',');
+                longitudes.append(',');
+            }
+            latitudes.append(location.getLatitude());
+            longitudes.append(location.getLongitude());
+        }
+
+        var link = new StringBuilder(FORECAST_URL + "?timeformat=unixtime")
                 .append("&timezone=auto")
-                .append("&latitude=" + location.getLatitude())
-                .append("&longitude=" + location.getLongitude())
+                .append("&latitude=" + latitudes)
+                .append("&longitude=" + longitudes)
                 .append("&windspeed_unit=ms")
                 .append("&forecast_days=7");
 
-        if (location.canUpdateCurrent()) {
+        if (current) {
             link.append("&current_weather=true");
         }
 
-        if (location.canUpdateDaily()) {
+        if (daily) {
             link.append(
                     "&daily=temperature_2m_max,temperature_2m_min,apparent_temperature_max,apparent_temperature_min,precipitation_sum,")
                     .append("rain_sum,showers_sum,snowfall_sum,precipitation_hours,weathercode,sunrise,sunset,windspeed_10m_max,windgusts_10m_max,")
@@ -71,58 +116,74 @@ public final class MeteoAPI {
                     .append("snow_depth,freezinglevel_height,visibility,is_day");
         }
 
-        try {
-            var apiUrl = URI.create(link.toString());
-            var client = HttpClient.newHttpClient();
-            var request = HttpRequest.newBuilder(apiUrl)
-                    .GET()
-                    .timeout(Duration.ofSeconds(3))
-                    .build();
-
-            var response = client.send(request, BodyHandlers.ofString());
-            if (response.statusCode() != 200) {
-                WeatherRestApplication.logger.error(
-                        "updateLocationData: statusCode = " + response.statusCode() + ", body = " + response.body());
-                return Optional.empty();
-            }
+        return URI.create(link.toString());
+    }
 
-            return Optional.of(JsonParser.parseString(response.body()).getAsJsonObject());
-        } catch (Exception e) {
-            e.printStackTrace();
+    private static URI locationByCoordsUri(String latitude, String longitude) {
+        return URI.create("http://api.geonames.org/findNearbyPlaceNameJSON?lat=" + latitude + "&lng="
+                + longitude + "&username=" + geoUsername);
+    }
+
+    private static Optional<List<WeatherLocation>> parseLocationsByName(HttpResponse<String> response) {
+        if (response.statusCode() != 200) {
+            WeatherRestApplication.logger
+                    .error("searchByName: statusCode = " + response.statusCode() + ", body = " + response.body());
+            return Optional.empty();
+        }
+
+        var object = JsonParser.parseString(response.body()).getAsJsonObject();
+        if (!object.isJsonNull() && object.has("results")) {
+            var results = object.get("results").getAsJsonArray();
+            if (!results.isEmpty()) {
+                var list = new ArrayList<WeatherLocation>();
+                for (JsonElement e : results) {
+                    list.add(WeatherLocation.fromJSON(e.getAsJsonObject()));
+                }
+                return Optional.of(list);
+            }
         }
         return Optional.empty();
     }
 
-    public static Optional<WeatherLocation> requestLocationByCoods(String latitude, String longitude) {
-        try {
-            var apiUrl = URI.create("http://api.geonames.org/findNearbyPlaceNameJSON?lat=" + latitude + "&lng="
-                    + longitude + "&username=" + geoUsername);
-            var client = HttpClient.newHttpClient();
-            var request = HttpRequest.newBuilder(apiUrl)
-                    .GET()
-                    .timeout(Duration.ofSeconds(3))
-                    .build();
-
-            var response = client.send(request, BodyHandlers.ofString());
+    private static List<Optional<ForecastData>> parseLocationDataBatch(HttpResponse<InputStream> response) {
+        try (var reader = new InputStreamReader(response.body(), StandardCharsets.UTF_8)) {
             if (response.statusCode() != 200) {
-                WeatherRestApplication.logger.error("requestLocationByCoods: statusCode = " + response.statusCode()
-                        + ", body = " + response.body());
-                return Optional.empty();
+                WeatherRestApplication.logger.error("updateLocationDataBatch: statusCode = " + response.statusCode()
+                        + ", body = " + new BufferedReader(reader).lines().collect(Collectors.joining()));
+                return List.of();
             }
 
-            var object = JsonParser.parseString(response.body()).getAsJsonObject();
-            if (object.has("geonames") && !object.getAsJsonArray("geonames").isEmpty()) {
-                return Optional.of(WeatherLocation.fromJSON(object));
+            var list = new ArrayList<Optional<ForecastData>>();
+            for (var data : ForecastReader.readAll(reader)) {
+                list.add(Optional.of(data).filter((d) -> !d.isEmpty()));
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            return list;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Optional<WeatherLocation> parseLocationByCoords(HttpResponse<String> response) {
+        if (response.statusCode() != 200) {
+            WeatherRestApplication.logger.error("requestLocationByCoods: statusCode = " + response.statusCode()
+                    + ", body = " + response.body());
+            return Optional.empty();
+        }
+
+        var object = JsonParser.parseString(response.body()).getAsJsonObject();
+        if (object.has("geonames") && !object.getAsJsonArray("geonames").isEmpty()) {
+            return Optional.of(WeatherLocation.fromJSON(object));
         }
         return Optional.empty();
     }
 
-    public static String normalize(String str) {
-        if (Normalizer.isNormalized(str, Form.NFKD))
-            return str;
-        return Normalizer.normalize(str, Form.NFKD).replaceAll("\\p{M}", "");
+    private static <T> List<T> failedBatch(Throwable t) {
+        t.printStackTrace();
+        return List.of();
+    }
+
+    private static <T> Optional<T> failed(Throwable t) {
+        t.printStackTrace();
+        return Optional.empty();
     }
 }
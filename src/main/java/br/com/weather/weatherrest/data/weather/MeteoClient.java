@@ -0,0 +1,199 @@
+package br.com.weather.weatherrest.data.weather;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import javax.net.ssl.SSLSession;
+
+import com.google.gson.JsonObject;
+
+import br.com.weather.weatherrest.VirtualThreads;
+
+/*
+ * one long lived HttpClient shared by every upstream call, so connections
+ * (and http2 streams to api.open-meteo.com) are reused instead of paying a
+ * new selector thread + tls handshake per request.
+ */
+public final class MeteoClient {
+    private static final int CONNECT_TIMEOUT_MS = Integer.getInteger("weather.http.connectTimeout", 2000);
+    private static final int READ_TIMEOUT_MS = Integer.getInteger("weather.http.readTimeout", 3000);
+    private static final int THREADS = Integer.getInteger("weather.http.threads", 8);
+    private static final int MAX_PER_HOST = Integer.getInteger("weather.http.maxPerHost", 32);
+
+    private static final ExecutorService executor = VirtualThreads.getExecutor()
+            .orElseGet(() -> Executors.newFixedThreadPool(THREADS, daemonFactory("meteo-http-")));
+    // streamed bodies are read here, blocking on them in the client executor could starve it
+    private static final ExecutorService bodyExecutor = VirtualThreads.getExecutor()
+            .orElseGet(() -> Executors.newCachedThreadPool(daemonFactory("meteo-body-")));
+    private static final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT_MS))
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .executor(executor)
+            .build();
+
+    private static final ConcurrentHashMap<String, HostLimiter> hosts = new ConcurrentHashMap<>();
+    /*
+     * a tls session seen before means no full handshake was made: the connection
+     * was reused or the session resumed on a new one, the session alone can't
+     * tell those apart, so they're counted together.
+     */
+    private static final Map<SSLSession, Boolean> sessions = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final LongAdder requests = new LongAdder();
+    private static final LongAdder failures = new LongAdder();
+    private static final LongAdder throttled = new LongAdder();
+    private static final LongAdder handshakes = new LongAdder();
+    private static final LongAdder reusedSessions = new LongAdder();
+    private static final LongAdder http2Responses = new LongAdder();
+
+    public static HttpRequest newRequest(URI uri) {
+        return HttpRequest.newBuilder(uri)
+                .GET()
+                .timeout(Duration.ofMillis(READ_TIMEOUT_MS))
+                .build();
+    }
+
+    public static <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> handler) {
+        var limiter = limiterFor(request.uri());
+        var permit = limiter.acquire()
+                .orTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        return permit.handle((v, error) -> {
+            if (error != null) {
+                throttled.increment();
+                return CompletableFuture.<HttpResponse<T>>failedFuture(
+                        new HttpTimeoutException("too many concurrent requests to " + request.uri().getHost()));
+            }
+
+            requests.increment();
+            try {
+                return client.sendAsync(request, handler)
+                        .whenComplete((response, e) -> {
+                            limiter.release();
+                            if (e != null) {
+                                failures.increment();
+                            } else {
+                                record(response);
+                            }
+                        });
+            } catch (RuntimeException e) {
+                // thrown before a future existed, nothing else would give the permit back
+                limiter.release();
+                failures.increment();
+                return CompletableFuture.<HttpResponse<T>>failedFuture(e);
+            }
+        }).thenCompose(Function.identity());
+    }
+
+    public static ExecutorService getBodyExecutor() {
+        return bodyExecutor;
+    }
+
+    public static JsonObject toJsonObject() {
+        var obj = new JsonObject();
+        obj.addProperty("requests", requests.sum());
+        obj.addProperty("failures", failures.sum());
+        obj.addProperty("throttled", throttled.sum());
+        obj.addProperty("http2_responses", http2Responses.sum());
+        obj.addProperty("tls_handshakes", handshakes.sum());
+        obj.addProperty("handshakes_avoided", reusedSessions.sum());
+        return obj;
+    }
+
+    private static void record(HttpResponse<?> response) {
+        if (response.version() == HttpClient.Version.HTTP_2) {
+            http2Responses.increment();
+        }
+
+        response.sslSession().ifPresent(session -> {
+            if (sessions.put(session, Boolean.TRUE) == null) {
+                handshakes.increment();
+            } else {
+                reusedSessions.increment();
+            }
+        });
+    }
+
+    private static HostLimiter limiterFor(URI uri) {
+        return hosts.computeIfAbsent(uri.getHost(), (h) -> new HostLimiter(MAX_PER_HOST));
+    }
+
+    static ThreadFactory daemonFactory(String prefix) {
+        var count = new AtomicInteger();
+        return (runnable) -> {
+            var thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /*
+     * semaphore that hands out permits as futures, so async callers queue up
+     * without holding a thread while they wait.
+     */
+    private static final class HostLimiter {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+        private int permits;
+
+        private HostLimiter(int permits) {
+            this.permits = permits;
+        }
+
+        private CompletableFuture<Void> acquire() {
+            this.lock.lock();
+            try {
+                if (this.permits > 0) {
+                    this.permits--;
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                var waiter = new CompletableFuture<Void>();
+                this.waiters.add(waiter);
+                return waiter;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        private void release() {
+            while (true) {
+                CompletableFuture<Void> waiter;
+                this.lock.lock();
+                try {
+                    waiter = this.waiters.poll();
+                    if (waiter == null) {
+                        this.permits++;
+                        return;
+                    }
+                } finally {
+                    this.lock.unlock();
+                }
+
+                // a waiter that already timed out or was cancelled passes the permit along
+                if (waiter.complete(null)) {
+                    return;
+                }
+            }
+        }
+    }
+}
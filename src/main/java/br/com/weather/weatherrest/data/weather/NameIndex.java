@@ -0,0 +1,119 @@
+package br.com.weather.weatherrest.data.weather;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * trigram inverted index over the normalized location names. a query looks
+ * up the posting list of each of its trigrams, walks the shortest one and
+ * confirms every candidate with a plain contains(), so no regex is involved.
+ */
+public final class NameIndex {
+    private final ConcurrentHashMap<Long, Postings> trigrams = new ConcurrentHashMap<>();
+    private final LocationRegistry locations;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public NameIndex(LocationRegistry locations) {
+        this.locations = locations;
+    }
+
+    public void add(WeatherLocation location) {
+        var name = key(location.getNormalizedName());
+        if (name.length() < 3) {
+            return;
+        }
+
+        this.lock.lock();
+        try {
+            var seen = new HashSet<Long>();
+            for (int i = 0; i + 3 <= name.length(); i++) {
+                var trigram = trigram(name, i);
+                // the same trigram twice in a name only needs one posting
+                if (!seen.add(trigram)) {
+                    continue;
+                }
+
+                var postings = this.trigrams.get(trigram);
+                this.trigrams.put(trigram, postings == null ? Postings.of(location.getId()) : postings.add(location.getId()));
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public List<WeatherLocation> search(String query) {
+        var found = new ArrayList<WeatherLocation>();
+        var needle = key(query);
+
+        if (needle.length() < 3) {
+            // too short to have a trigram, the whole catalogue is a candidate
+            this.locations.forEach((w) -> {
+                if (key(w.getNormalizedName()).contains(needle)) {
+                    found.add(w);
+                }
+            });
+            return found;
+        }
+
+        Postings shortest = null;
+        for (int i = 0; i + 3 <= needle.length(); i++) {
+            var postings = this.trigrams.get(trigram(needle, i));
+            if (postings == null) {
+                return found;
+            }
+            if (shortest == null || postings.size < shortest.size) {
+                shortest = postings;
+            }
+        }
+
+        for (int i = 0; i < shortest.size; i++) {
+            var location = this.locations.get(shortest.ids[i]);
+            if (location != null && key(location.getNormalizedName()).contains(needle)) {
+                found.add(location);
+            }
+        }
+
+        return found;
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static long trigram(String str, int index) {
+        return ((long) str.charAt(index) << 32) | ((long) str.charAt(index + 1) << 16) | str.charAt(index + 2);
+    }
+
+    /*
+     * append only id list. the backing array is shared between versions, a
+     * new version only exposes one more slot, so readers never see a write
+     * past their own size.
+     */
+    private static final class Postings {
+        private final int[] ids;
+        private final int size;
+
+        private Postings(int[] ids, int size) {
+            this.ids = ids;
+            this.size = size;
+        }
+
+        private static Postings of(int id) {
+            return new Postings(new int[] { id, 0 }, 1);
+        }
+
+        private Postings add(int id) {
+            var ids = this.ids;
+            if (this.size == ids.length) {
+                ids = Arrays.copyOf(ids, ids.length << 1);
+            }
+            ids[this.size] = id;
+            return new Postings(ids, this.size + 1);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package br.com.weather.weatherrest.data.weather;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.JsonObject;
+
+/*
+ * refreshes the hot locations a little before their forecast turns
+ * outdated, so user requests find it warm. every tick picks the hottest
+ * locations going stale, within a concurrency budget and an upstream rate.
+ * both count meteo requests, which the batcher fills with up to a batch
+ * of locations each.
+ */
+public final class RefreshScheduler {
+    private static final boolean ENABLED = Boolean
+            .parseBoolean(System.getProperty("weather.refresh.enabled", "true"));
+    private static final int INTERVAL_SECONDS = Integer.getInteger("weather.refresh.intervalSeconds", 15);
+    private static final long LEAD_MS = TimeUnit.SECONDS.toMillis(Integer.getInteger("weather.refresh.leadSeconds", 90));
+    private static final double MIN_HOTNESS = Double
+            .parseDouble(System.getProperty("weather.refresh.minHotness", "3"));
+    private static final int MAX_PER_TICK = Integer.getInteger("weather.refresh.maxPerTick", 200);
+    private static final double RATE_PER_SECOND = Double
+            .parseDouble(System.getProperty("weather.refresh.ratePerSecond", "10"));
+
+    private final LocationRegistry locations;
+    // meteo requests in flight
+    private final Semaphore running = new Semaphore(Integer.getInteger("weather.refresh.concurrency", 16));
+    private final ScheduledExecutorService timer = Executors
+            .newSingleThreadScheduledExecutor(MeteoClient.daemonFactory("refresh-"));
+
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+
+    public RefreshScheduler(LocationRegistry locations) {
+        this.locations = locations;
+    }
+
+    public void start() {
+        if (ENABLED) {
+            this.timer.scheduleWithFixedDelay(this::tick, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    public JsonObject toJsonObject() {
+        var obj = new JsonObject();
+        obj.addProperty("enabled", ENABLED);
+        obj.addProperty("free_slots", this.running.availablePermits());
+        obj.addProperty("refreshes", this.refreshes.sum());
+        obj.addProperty("throttled", this.throttled.sum());
+        return obj;
+    }
+
+    private void tick() {
+        try {
+            var now = System.currentTimeMillis();
+            var due = new ArrayList<WeatherLocation>();
+            this.locations.forEach((w) -> {
+                // refreshed within the lead already, meteo won't have anything newer yet
+                if (now - w.getLastUpdated() < LEAD_MS) {
+                    return;
+                }
+                // no forecast to keep warm, the next request loads it
+                var staleAt = w.getStaleAt();
+                if (staleAt != 0 && w.getHotness(now) >= MIN_HOTNESS && staleAt - now <= LEAD_MS) {
+                    due.add(w);
+                }
+            });
+
+            due.sort(Comparator.comparingDouble((WeatherLocation w) -> w.getHotness(now)).reversed());
+
+            // the tick's share of the rate, in requests. locations needing different
+            // parts go in separate requests, so a group can take more than one
+            var batcher = WeatherManager.getForecastBatcher();
+            var batchSize = batcher.getBatchSize();
+            var requests = (long) Math.max(1, RATE_PER_SECOND * INTERVAL_SECONDS);
+            var count = (int) Math.min(due.size(), Math.min(MAX_PER_TICK, requests * batchSize));
+
+            var i = 0;
+            while (i < count && this.running.tryAcquire()) {
+                var end = Math.min(count, i + batchSize);
+                var group = new ArrayList<CompletableFuture<Void>>(end - i);
+                for (; i < end; i++) {
+                    group.add(due.get(i).prefetchAsync(LEAD_MS));
+                }
+                this.refreshes.add(group.size());
+                CompletableFuture.allOf(group.toArray(CompletableFuture[]::new))
+                        .whenComplete((v, e) -> this.running.release());
+            }
+            // the rest waits for the next tick, the hottest ones went first
+            this.throttled.add(due.size() - i);
+            batcher.flush();
+        } catch (Exception e) {
+            // an exception would cancel the schedule
+            e.printStackTrace();
+        }
+    }
+}
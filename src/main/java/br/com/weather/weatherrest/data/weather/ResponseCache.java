@@ -0,0 +1,163 @@
+package br.com.weather.weatherrest.data.weather;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+/*
+ * encoded /location bodies, plain and gzip, per location id. an entry is
+ * only good for the forecast version it was encoded from, a newer version
+ * re-encodes it. only locations held by the forecast cache get an entry,
+ * and they're dropped together with their forecast.
+ */
+public final class ResponseCache {
+    private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+    private final LongAdder gzipBytesSaved = new LongAdder();
+
+    public Body get(WeatherLocation location, boolean gzip, boolean cacheable) {
+        var entry = this.entries.get(location.getId());
+
+        if (entry != null && entry.version == location.getVersion()) {
+            this.hits.increment();
+            this.bytesSaved.add(entry.plain.length);
+            if (gzip) {
+                this.gzipBytesSaved.add(entry.plain.length - entry.gzip.length);
+            }
+            return entry.body(gzip);
+        }
+
+        this.misses.increment();
+        /*
+         * validators are read before encoding: a forecast that changes
+         * meanwhile can only make the body newer than its etag, never older,
+         * and such an entry isn't kept.
+         */
+        var version = location.getVersion();
+        var etag = location.getETag();
+        var lastUpdated = location.getLastUpdated();
+        var staleAt = location.getStaleAt();
+        var plain = encode(location);
+        if (!cacheable || version != location.getVersion()) {
+            if (entry != null) {
+                this.entries.remove(location.getId(), entry);
+            }
+            return new Body(etag, lastUpdated, staleAt, gzip ? compress(plain) : plain);
+        }
+
+        entry = new Entry(version, etag, lastUpdated, staleAt, plain, compress(plain));
+        this.entries.put(location.getId(), entry);
+        if (gzip) {
+            this.gzipBytesSaved.add(entry.plain.length - entry.gzip.length);
+        }
+        return entry.body(gzip);
+    }
+
+    public void remove(int id) {
+        this.entries.remove(id);
+    }
+
+    public JsonObject toJsonObject() {
+        var obj = new JsonObject();
+        var hits = this.hits.sum();
+        var total = hits + this.misses.sum();
+        var bytes = 0L;
+        for (var entry : this.entries.values()) {
+            bytes += entry.plain.length + entry.gzip.length;
+        }
+
+        obj.addProperty("entries", this.entries.size());
+        obj.addProperty("bytes", bytes);
+        obj.addProperty("hits", hits);
+        obj.addProperty("misses", total - hits);
+        obj.addProperty("hit_ratio", total == 0 ? 0 : (double) hits / total);
+        obj.addProperty("bytes_saved", this.bytesSaved.sum());
+        obj.addProperty("gzip_bytes_saved", this.gzipBytesSaved.sum());
+        return obj;
+    }
+
+    private static byte[] encode(WeatherLocation location) {
+        var bytes = new ByteArrayOutputStream(16 * 1024);
+        try {
+            var out = new JsonWriter(new BufferedWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8), 8192));
+            location.writeJson(out, true);
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] compress(byte[] plain) {
+        var bytes = new ByteArrayOutputStream(plain.length / 4);
+        try (var gzip = new GZIPOutputStream(bytes, 8192)) {
+            gzip.write(plain);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /*
+     * an encoded body with the validators of the forecast it was encoded
+     * from, so the etag sent always matches the bytes sent.
+     */
+    public static final class Body {
+        private final String etag;
+        private final long lastUpdated, staleAt;
+        private final byte[] bytes;
+
+        private Body(String etag, long lastUpdated, long staleAt, byte[] bytes) {
+            this.etag = etag;
+            this.lastUpdated = lastUpdated;
+            this.staleAt = staleAt;
+            this.bytes = bytes;
+        }
+
+        public String getETag() {
+            return this.etag;
+        }
+
+        public long getLastUpdated() {
+            return this.lastUpdated;
+        }
+
+        public long getStaleAt() {
+            return this.staleAt;
+        }
+
+        public byte[] getBytes() {
+            return this.bytes;
+        }
+    }
+
+    private static final class Entry {
+        private final int version;
+        private final Body plainBody, gzipBody;
+        private final byte[] plain, gzip;
+
+        private Entry(int version, String etag, long lastUpdated, long staleAt, byte[] plain, byte[] gzip) {
+            this.version = version;
+            this.plain = plain;
+            this.gzip = gzip;
+            this.plainBody = new Body(etag, lastUpdated, staleAt, plain);
+            this.gzipBody = new Body(etag, lastUpdated, staleAt, gzip);
+        }
+
+        private Body body(boolean gzip) {
+            return gzip ? this.gzipBody : this.plainBody;
+        }
+    }
+}
@@ -4,17 +4,18 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
-import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonParser;
 
 public class SearchPatterns {
-    private final HashSet<String> patterns;
+    private final Set<String> patterns;
     private final File file;
-    private boolean modified;
+    private volatile boolean modified;
 
     public SearchPatterns(String filePath) {
-        this.patterns = new HashSet<>();
+        this.patterns = ConcurrentHashMap.newKeySet();
         this.file = new File(filePath);
         populateFromFile();
     }
@@ -0,0 +1,45 @@
+package br.com.weather.weatherrest.data.weather;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/*
+ * collapses concurrent calls for the same key into one: the first caller
+ * runs the task, everyone arriving while it's in flight gets the same future.
+ */
+public final class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inflight = new ConcurrentHashMap<>();
+
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> task) {
+        var promise = new CompletableFuture<V>();
+        var current = this.inflight.putIfAbsent(key, promise);
+        if (current != null) {
+            return current;
+        }
+
+        try {
+            task.get().whenComplete((value, error) -> {
+                this.inflight.remove(key, promise);
+                if (error != null) {
+                    promise.completeExceptionally(error);
+                } else {
+                    promise.complete(value);
+                }
+            });
+        } catch (Throwable t) {
+            this.inflight.remove(key, promise);
+            promise.completeExceptionally(t);
+        }
+
+        return promise;
+    }
+
+    public boolean isInFlight(K key) {
+        return this.inflight.containsKey(key);
+    }
+
+    public int size() {
+        return this.inflight.size();
+    }
+}
@@ -0,0 +1,101 @@
+package br.com.weather.weatherrest.data.weather;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * fixed lat/long grid, each cell holding the locations inside it. a
+ * nearest lookup only visits the cells the search radius can reach, so its
+ * cost depends on the radius and not on how many locations are cached.
+ */
+public final class SpatialIndex {
+    private static final double CELL_DEGREES = 0.1;
+    private static final double EARTH_RADIUS_KM = 6371.0088;
+    public static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180;
+    private static final int LONG_CELLS = (int) Math.ceil(360 / CELL_DEGREES);
+
+    private final ConcurrentHashMap<Long, WeatherLocation[]> cells = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public void add(WeatherLocation location) {
+        var key = key(row(location.getLatitude()), column(location.getLongitude()));
+
+        this.lock.lock();
+        try {
+            var cell = this.cells.get(key);
+            if (cell == null) {
+                this.cells.put(key, new WeatherLocation[] { location });
+                return;
+            }
+
+            var copy = Arrays.copyOf(cell, cell.length + 1);
+            copy[cell.length] = location;
+            this.cells.put(key, copy);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public Optional<WeatherLocation> nearest(double latitude, double longitude, double radiusKm) {
+        var rowSpan = (int) Math.ceil(radiusKm / KM_PER_DEGREE / CELL_DEGREES);
+        var row = row(latitude);
+
+        // longitude degrees shrink towards the poles, widen the column span to match
+        var maxLat = Math.min(90, Math.abs(latitude) + radiusKm / KM_PER_DEGREE);
+        var cos = Math.cos(Math.toRadians(maxLat));
+        var columnSpan = cos < 1e-6 ? LONG_CELLS
+                : (int) Math.ceil(radiusKm / (KM_PER_DEGREE * cos) / CELL_DEGREES);
+        var column = column(longitude);
+        var firstColumn = column - columnSpan;
+        var lastColumn = column + columnSpan;
+        if (lastColumn - firstColumn + 1 >= LONG_CELLS) {
+            firstColumn = 0;
+            lastColumn = LONG_CELLS - 1;
+        }
+
+        WeatherLocation best = null;
+        var bestDistance = radiusKm;
+
+        for (int r = row - rowSpan; r <= row + rowSpan; r++) {
+            for (int c = firstColumn; c <= lastColumn; c++) {
+                var cell = this.cells.get(key(r, Math.floorMod(c, LONG_CELLS)));
+                if (cell == null) {
+                    continue;
+                }
+
+                for (var location : cell) {
+                    var distance = distanceKm(latitude, longitude, location.getLatitude(), location.getLongitude());
+                    if (distance <= bestDistance) {
+                        best = location;
+                        bestDistance = distance;
+                    }
+                }
+            }
+        }
+
+        return Optional.ofNullable(best);
+    }
+
+    public static double distanceKm(double lat1, double long1, double lat2, double long2) {
+        var dLat = Math.toRadians(lat2 - lat1);
+        var dLong = Math.toRadians(long2 - long1);
+        var a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                        * Math.sin(dLong / 2) * Math.sin(dLong / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static int row(double latitude) {
+        return (int) Math.floor((latitude + 90) / CELL_DEGREES);
+    }
+
+    private static int column(double longitude) {
+        return Math.floorMod((int) Math.floor((longitude + 180) / CELL_DEGREES), LONG_CELLS);
+    }
+
+    private static long key(int row, int column) {
+        return ((long) row << 32) | (column & 0xFFFFFFFFL);
+    }
+}
@@ -1,6 +1,9 @@
 package br.com.weather.weatherrest.data.weather;
 
+import java.io.IOException;
+
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 
 public enum WeatherCode {
     CLEAR_SKY(0, "clear sky"),
@@ -56,6 +59,13 @@ public enum WeatherCode {
         return json;
     }
 
+    public void writeJson(JsonWriter out) throws IOException {
+        out.beginObject();
+        out.name("code").value(this.code);
+        out.name("description").value(this.description);
+        out.endObject();
+    }
+
     public static WeatherCode valueOf(int code) {
         var values =  WeatherCode.values();
         for (int i = 0; i < values.length; i++) {
@@ -1,30 +1,52 @@
 package br.com.weather.weatherrest.data.weather;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Optional;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 
 import br.com.weather.weatherrest.data.weather.builder.WeatherLocationBuilder;
-import br.com.weather.weatherrest.database.StorageTask;
 
 public class WeatherLocation {
+    private static final int UPDATE_WAIT_SECONDS = 5;
+    private static final boolean SERVE_STALE = Boolean
+            .parseBoolean(System.getProperty("weather.staleWhileRevalidate", "true"));
+    // past this, callers wait for the refresh even with stale-while-revalidate
+    private static final long MAX_STALE_MS = TimeUnit.SECONDS
+            .toMillis(Integer.getInteger("weather.maxStaleSeconds", 3600));
+    // object header + fields + Optional/ArrayList wrappers, measured on a 64 bit jvm with compressed oops.
+    // an hourly row is 17 floats + timestamp + code + day flag in HourlySeries
+    private static final long BASE_SIZE = 512, CURRENT_SIZE = 96, DAILY_SIZE = 224, HOURLY_SIZE = 80;
+    private static final SingleFlight<Integer, Void> updates = new SingleFlight<>();
+    // hits older than this count half, for the hotness rate
+    private static final long HOTNESS_HALF_LIFE_MS = TimeUnit.MINUTES
+            .toMillis(Integer.getInteger("weather.refresh.halfLifeMinutes", 30));
+
     private final int id;
     private final String name, normalizedName, country, countryCode;
     private final double latitude, longitude;
-    private Optional<String> timezone, shortTZ, longTZ;
-    private boolean daylight;
-    private Optional<Integer> timezoneOffset;
+    private volatile Optional<String> timezone, shortTZ, longTZ;
+    private volatile boolean daylight;
+    private volatile Optional<Integer> timezoneOffset;
     private Optional<String> admin1;
     private Optional<Integer> population;
-    private Optional<CurrentWeather> currentWeather;
-    private Optional<List<DailyWeather>> dailyWeather;
-    private long lastUpdated, lastAccessed;
+    private volatile Optional<CurrentWeather> currentWeather;
+    private volatile Optional<List<DailyWeather>> dailyWeather;
+    private volatile long lastUpdated, lastAccessed;
+    // bumped whenever the forecast held here changes, serialized responses are keyed by it
+    private final AtomicInteger version = new AtomicInteger();
+    // exponentially decayed hit count, as of hotnessAt, and every hit ever
+    private double hotness;
+    private long hotnessAt, hits;
 
     public WeatherLocation(WeatherLocationBuilder builder) {
         this.id = builder.getId();
@@ -111,6 +133,20 @@ public class WeatherLocation {
         return this.lastUpdated;
     }
 
+    // how long the forecast has been outdated, 0 while it's fresh
+    public long getStaleness() {
+        var staleAt = this.getStaleAt();
+        return staleAt == 0 ? Long.MAX_VALUE : Math.max(0, System.currentTimeMillis() - staleAt);
+    }
+
+    private boolean isWithinStaleCeiling() {
+        return this.getStaleness() <= MAX_STALE_MS;
+    }
+
+    public int getVersion() {
+        return this.version.get();
+    }
+
     public long getLastAcessed() {
         return this.lastAccessed;
     }
@@ -125,72 +161,279 @@ public class WeatherLocation {
 
     public void setDailyWeather(Optional<List<DailyWeather>> dailyWeather) {
         this.dailyWeather = dailyWeather;
+        this.version.incrementAndGet();
     }
 
     public void setCurrentWeather(Optional<CurrentWeather> currentWeather) {
         this.currentWeather = currentWeather;
+        this.version.incrementAndGet();
     }
 
-    public void setLastAccessed(long lastAccessed) {
+    // a user asked for this location, counts for its hotness too
+    public synchronized void recordAccess(long now) {
+        this.hotness = this.getHotness(now) + 1;
+        this.hotnessAt = Math.max(now, this.hotnessAt);
+        this.lastAccessed = now;
+        this.hits++;
+    }
+
+    // access stats persisted by an earlier run
+    public synchronized void restoreAccess(long hits, double hotness, long hotnessAt, long lastAccessed) {
+        this.hits = hits;
+        this.hotness = hotness;
+        this.hotnessAt = hotnessAt;
         this.lastAccessed = lastAccessed;
     }
 
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized double getHotness(long now) {
+        if (this.hotness == 0 || now <= this.hotnessAt) {
+            return this.hotness;
+        }
+        return this.hotness * Math.pow(0.5, (double) (now - this.hotnessAt) / HOTNESS_HALF_LIFE_MS);
+    }
+
+    /*
+     * log2 of the hotness decayed back to time 0. decay shrinks every
+     * location by the same factor, so this orders them the same way their
+     * hotness does at any moment, and a stored rank never goes out of date.
+     */
+    public static double hotnessRank(double hotness, long at) {
+        return Math.log(Math.max(hotness, Double.MIN_VALUE)) / Math.log(2) + (double) at / HOTNESS_HALF_LIFE_MS;
+    }
+
     public boolean canUpdateDaily() {
-        if (!this.dailyWeather.isPresent()) {
-            return true;
+        var daily = this.dailyWeather;
+        return !daily.isPresent() || System.currentTimeMillis() > getDailyStaleAt(daily.get());
+    }
+
+    /*
+     * when the first part of the forecast turns outdated, 0 if it already
+     * has nothing to serve.
+     */
+    public long getStaleAt() {
+        var current = this.currentWeather;
+        var daily = this.dailyWeather;
+        if (current.isEmpty() || daily.isEmpty()) {
+            return 0;
         }
-        var firstDay = this.dailyWeather.get().get(0);
+        return Math.min(current.get().getStaleAt(), getDailyStaleAt(daily.get()));
+    }
 
-        return (System.currentTimeMillis() - firstDay.getTimestamp()) > TimeUnit.DAYS.toMillis(1);
+    /*
+     * identifies the document /location serves for this location. lastUpdated
+     * moves on every meteo update, the flags catch a forecast dropped or
+     * loaded back from DB in between.
+     */
+    public String getETag() {
+        var flags = (this.currentWeather.isPresent() ? 1 : 0) | (this.dailyWeather.isPresent() ? 2 : 0);
+        return "\"" + this.id + "-" + Long.toHexString(this.lastUpdated) + "-" + flags + "\"";
     }
 
     public boolean canUpdateCurrent() {
         return !this.currentWeather.isPresent() || this.currentWeather.get().canUpdate();
     }
 
+    public boolean hasForecast() {
+        return this.currentWeather.isPresent() || this.dailyWeather.isPresent();
+    }
+
+    /*
+     * rough heap footprint of the forecast this location holds, used to keep
+     * the forecast cache under its budget.
+     */
+    public long estimateSize() {
+        long size = BASE_SIZE;
+        if (this.currentWeather.isPresent()) {
+            size += CURRENT_SIZE;
+        }
+
+        var daily = this.dailyWeather;
+        if (daily.isPresent()) {
+            for (var day : daily.get()) {
+                size += DAILY_SIZE;
+                size += day.getHourlyWeather().map(List::size).orElse(0) * HOURLY_SIZE;
+            }
+        }
+        return size;
+    }
+
     public boolean canClear() {
         return System.currentTimeMillis() > (this.lastAccessed + TimeUnit.HOURS.toMillis(3));
     }
 
-    public boolean canStore() {
-        return TimeUnit.MILLISECONDS
-                .toSeconds(System.currentTimeMillis() - this.lastUpdated) < StorageTask.TASK_SECONDS;
+    /*
+     * only one caller per location id talks to meteo at a time, the others
+     * share its flight. a follower only waits for it when it has nothing
+     * to serve, otherwise it goes on with the stale data.
+     */
+    public CompletableFuture<WeatherLocation> updateDataAsync() {
+        if (!this.canUpdateCurrent() && !this.canUpdateDaily()) {
+            return CompletableFuture.completedFuture(this);
+        }
+
+        var leader = new boolean[1];
+        var flight = updates.execute(this.id, () -> {
+            leader[0] = true;
+            return this.refreshDataAsync()
+                    .whenComplete((v, e) -> WeatherManager.admitForecast(this));
+        });
+
+        return this.awaitFlight(flight, leader[0]);
+    }
+
+    /*
+     * refreshes the parts that turn outdated within leadMillis, before any
+     * user has to wait for them. a no-op when a refresh is already running.
+     */
+    public CompletableFuture<Void> prefetchAsync(long leadMillis) {
+        var deadline = System.currentTimeMillis() + leadMillis;
+        var current = this.currentWeather;
+        var daily = this.dailyWeather;
+        var parts = (current.isEmpty() || current.get().getStaleAt() <= deadline ? 1 : 0)
+                | (daily.isEmpty() || getDailyStaleAt(daily.get()) <= deadline ? 2 : 0);
+        if (parts == 0 || updates.isInFlight(this.id)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return updates.execute(this.id, () -> WeatherManager.getForecastBatcher().submit(this, parts)
+                .thenAccept((data) -> data.ifPresent(this::setDataFromAPI))
+                .whenComplete((v, e) -> WeatherManager.admitForecast(this)));
     }
 
-    public void updateData() {
+    /*
+     * same as updateDataAsync for many locations, the ones this call leads
+     * are handed to the batcher at once so they share meteo requests.
+     */
+    public static CompletableFuture<Void> updateAllAsync(List<WeatherLocation> locations) {
+        var leaders = new ArrayList<WeatherLocation>();
+        var promises = new HashMap<Integer, CompletableFuture<Void>>();
+        var waits = new ArrayList<CompletableFuture<WeatherLocation>>();
+
+        for (var location : locations) {
+            if (!location.canUpdateCurrent() && !location.canUpdateDaily()) {
+                continue;
+            }
+
+            var promise = new CompletableFuture<Void>();
+            var leader = new boolean[1];
+            var flight = updates.execute(location.id, () -> {
+                leader[0] = true;
+                return promise;
+            });
+
+            if (leader[0]) {
+                leaders.add(location);
+                promises.put(location.id, promise);
+            }
+            waits.add(location.awaitFlight(flight, leader[0]));
+        }
+
+        if (!leaders.isEmpty()) {
+            CompletableFuture<Void> refresh;
+            try {
+                refresh = refreshAllAsync(leaders);
+            } catch (Exception e) {
+                refresh = CompletableFuture.failedFuture(e);
+            }
+
+            refresh.whenComplete((v, e) -> {
+                for (var location : leaders) {
+                    WeatherManager.admitForecast(location);
+                    promises.get(location.id).complete(null);
+                }
+            });
+        }
+
+        return CompletableFuture.allOf(waits.toArray(CompletableFuture[]::new));
+    }
+
+    private static CompletableFuture<Void> refreshAllAsync(List<WeatherLocation> locations) {
+        var stale = new ArrayList<WeatherLocation>(locations.size());
+        for (var location : locations) {
+            if (location.currentWeather.isEmpty() || location.dailyWeather.isEmpty()) {
+                location.setDataFromDB();
+            }
+
+            if (location.canUpdateCurrent() || location.canUpdateDaily()) {
+                stale.add(location);
+            }
+        }
+
+        var requests = new ArrayList<CompletableFuture<Void>>(locations.size());
+        for (var location : stale) {
+            requests.add(WeatherManager.getForecastBatcher().submit(location)
+                    .thenAccept((data) -> data.ifPresent(location::setDataFromAPI)));
+        }
+        // everything this call needs is queued, no point waiting for the window
+        WeatherManager.getForecastBatcher().flush();
+
+        return CompletableFuture.allOf(requests.toArray(CompletableFuture[]::new));
+    }
+
+    /*
+     * with stale-while-revalidate everyone, the leader included, goes on with
+     * the outdated forecast while it's within the staleness ceiling. without
+     * it only followers that have something to serve skip the wait.
+     */
+    private CompletableFuture<WeatherLocation> awaitFlight(CompletableFuture<Void> flight, boolean leader) {
+        var serve = SERVE_STALE ? this.isWithinStaleCeiling()
+                : !leader && this.currentWeather.isPresent() && this.dailyWeather.isPresent();
+        if (serve) {
+            return CompletableFuture.completedFuture(this);
+        }
+
+        return flight.handle((v, e) -> this)
+                .completeOnTimeout(this, UPDATE_WAIT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private CompletableFuture<Void> refreshDataAsync() {
         // first check if there's data on DB
         if (this.currentWeather.isEmpty() || this.dailyWeather.isEmpty()) {
             this.setDataFromDB();
         }
 
         // then check if data is outdated/can be updated, if it is, then try to update
-        if (this.canUpdateCurrent() || this.canUpdateDaily()) {
-            MeteoAPI.requestLocationData(this)
-                    .ifPresent((object) -> {
-                        if (object.isJsonNull() || object.size() == 0) {
-                            return;
-                        }
-
-                        if (this.timezone.isEmpty() && object.has("timezone")) {
-                            this.timezone = Optional.of(object.get("timezone").getAsString());
+        if (!this.canUpdateCurrent() && !this.canUpdateDaily()) {
+            return CompletableFuture.completedFuture(null);
+        }
 
-                            var tz = TimeZone.getTimeZone(this.timezone.get());
-                            this.daylight = tz.inDaylightTime(new Date());
-                            this.longTZ = Optional.of(tz.getDisplayName(this.daylight, TimeZone.LONG));
-                            this.shortTZ = Optional.of(tz.getDisplayName(this.daylight, TimeZone.SHORT));
-                        }
+        return WeatherManager.getForecastBatcher().submit(this)
+                .thenAccept((data) -> data.ifPresent(this::setDataFromAPI));
+    }
 
-                        if (object.has("current_weather")) {
-                            this.currentWeather = CurrentWeather.fromJSON(object.getAsJsonObject("current_weather"));
-                        }
+    private void setDataFromAPI(ForecastData data) {
+        if (this.timezone.isEmpty() && data.getTimezone().isPresent()) {
+            var tz = TimeZone.getTimeZone(data.getTimezone().get());
+            this.daylight = tz.inDaylightTime(new Date());
+            this.longTZ = Optional.of(tz.getDisplayName(this.daylight, TimeZone.LONG));
+            this.shortTZ = Optional.of(tz.getDisplayName(this.daylight, TimeZone.SHORT));
+            this.timezoneOffset = Optional.of(tz.getOffset(System.currentTimeMillis()));
+            // published last, readers check timezone before the fields above
+            this.timezone = data.getTimezone();
+        }
 
-                        if (object.has("daily") && object.has("hourly")) {
-                            this.dailyWeather = this.createDailyFromJSON(object);
-                        }
+        if (data.getCurrentWeather().isPresent()) {
+            this.currentWeather = data.getCurrentWeather();
+        }
 
-                        this.lastUpdated = System.currentTimeMillis();
-                    });
+        if (data.getDailyWeather().isPresent() && data.getHourlyWeather().isPresent()) {
+            var series = data.getHourlyWeather().get();
+            this.dailyWeather = this.setHourlyToCorrectDay(data.getDailyWeather().get(),
+                    series.view(0, series.size()));
         }
+
+        this.lastUpdated = System.currentTimeMillis();
+        this.version.incrementAndGet();
+        WeatherManager.markDirty(this);
+    }
+
+    private static long getDailyStaleAt(List<DailyWeather> daily) {
+        // unix seconds, like every meteo timestamp
+        return TimeUnit.SECONDS.toMillis(daily.get(0).getTimestamp()) + TimeUnit.DAYS.toMillis(1);
     }
 
     public JsonObject toJsonObject(boolean include) {
@@ -238,80 +481,119 @@ public class WeatherLocation {
         return obj;
     }
 
-    private void setDataFromDB() {
-        WeatherManager.getWeatherStorage()
-                .queryWeatherData(this)
-                .ifPresent(json -> {
-                    var weather_data = json.getAsJsonObject("weather_data");
-
-                    if (weather_data.has("current_weather")) {
-                        this.currentWeather = CurrentWeather.fromJSON(weather_data.getAsJsonObject("current_weather"));
-                    }
-
-                    if (weather_data.has("daily")) {
-                        this.dailyWeather = this.createDailyFromJSON(json);
-                    }
-                });
+    // same document as toJsonObject, written straight to the stream without building the tree
+    public void writeJson(JsonWriter out, boolean include) throws IOException {
+        out.beginObject();
+        out.name("id").value(this.id);
+        out.name("name").value(this.name);
+        out.name("latitude").value(this.latitude);
+        out.name("longitude").value(this.longitude);
 
-    }
+        if (this.country != null) {
+            out.name("country").value(this.country);
+        }
 
-    private Optional<List<DailyWeather>> createDailyFromJSON(JsonObject object) {
+        if (this.countryCode != null) {
+            out.name("country_code").value(this.countryCode);
+        }
 
-        // if it's from DB
-        if (object.has("weather_data")) {
-            var array = new ArrayList<DailyWeather>();
-            var dailyArray = object.getAsJsonObject("weather_data").getAsJsonArray("daily");
+        var timezone = this.timezone;
+        if (timezone.isPresent()) {
+            out.name("timezone").value(timezone.get());
+            out.name("timezone_short").value(this.shortTZ.get());
+            out.name("timezone_long").value(this.longTZ.get());
+            out.name("timezone_offset").value(this.timezoneOffset.get() / 1000);
+        }
+        out.name("last_updated").value(this.lastUpdated);
+        if (this.admin1.isPresent()) {
+            out.name("admin1").value(this.admin1.get());
+        }
+        if (this.population.isPresent()) {
+            out.name("population").value(this.population.get());
+        }
 
-            dailyArray.forEach(obj -> {
-                var dailyObject = obj.getAsJsonObject();
-                DailyWeather daily = DailyWeather.fromJSON(dailyObject).get();
+        var current = this.currentWeather;
+        var daily = this.dailyWeather;
+        if (include && (current.isPresent() || daily.isPresent())) {
+            out.name("weather_data").beginObject();
+            if (current.isPresent()) {
+                out.name("current_weather");
+                current.get().writeJson(out);
+            }
 
-                var hourlyArray = new ArrayList<HourlyWeather>();
-                dailyObject.getAsJsonArray("hourly").forEach(h -> {
-                    HourlyWeather.fromJSON(h.getAsJsonObject()).ifPresent(hr -> hourlyArray.add(hr));
-                });
+            if (daily.isPresent()) {
+                out.name("daily").beginArray();
+                for (var day : daily.get()) {
+                    day.writeJson(out);
+                }
+                out.endArray();
+            }
+            out.endObject();
+        }
 
-                daily.setHourlyWeather(Optional.of(hourlyArray));
-                array.add(daily);
-            });
+        out.endObject();
+    }
 
-            return Optional.of(array);
+    /*
+     * only the parts missing here are read. the boot snapshot saves the
+     * queries while nothing newer than it was fetched.
+     */
+    private void setDataFromDB() {
+        var storage = WeatherManager.getWeatherStorage();
+        var snapshot = WeatherManager.readSnapshot(this.id).filter((s) -> s.lastUpdated >= this.lastUpdated);
+        var loaded = false;
+
+        if (this.currentWeather.isEmpty()) {
+            var current = snapshot.flatMap(WeatherLocation::getCurrentWeather)
+                    .or(() -> storage.queryCurrentWeather(this.id));
+            if (current.isPresent()) {
+                this.currentWeather = current;
+                loaded = true;
+            }
         }
 
-        // now from meteo api
-        var dailyArray = DailyWeather.fromJSONArray(object.getAsJsonObject("daily")).get();
-        var hourlyArray = HourlyWeather.fromJSONArray(object.getAsJsonObject("hourly")).get();
+        if (this.dailyWeather.isEmpty()) {
+            var daily = snapshot.flatMap(WeatherLocation::getDailyWeather)
+                    .or(() -> storage.queryDailyWeather(this.id));
+            if (daily.isPresent()) {
+                this.dailyWeather = daily;
+                loaded = true;
+            }
+        }
 
-        return setHourlyToCorrectDay(dailyArray, hourlyArray);
+        if (loaded) {
+            this.version.incrementAndGet();
+        }
     }
 
     // sometimes, maybe, meteo doesn't give hourly for a full day, it gives 23 hours
     // sometimes, that's why
     // or maybe i'm dumb, but whatever
+    // hours come sorted, so each day is a contiguous sublist of the hourly view
     private Optional<List<DailyWeather>> setHourlyToCorrectDay(List<DailyWeather> dailyArray,
             List<HourlyWeather> hourlyArray) {
         var map = new HashMap<String, List<HourlyWeather>>(7);
 
-        hourlyArray.forEach(hour -> {
-            var date = hour.getLocalDateTime(this.timezone.get()).toLocalDate().toString();
-            var array = map.get(date);
-
-            if (array == null) {
-                array = new ArrayList<HourlyWeather>();
+        var start = 0;
+        String current = null;
+        for (int i = 0; i < hourlyArray.size(); i++) {
+            var date = hourlyArray.get(i).getLocalDateTime(this.timezone.get()).toLocalDate().toString();
+            if (current != null && !date.equals(current)) {
+                map.put(current, hourlyArray.subList(start, i));
+                start = i;
             }
+            current = date;
+        }
 
-            array.add(hour);
-            map.put(date, array);
-        });
+        if (current != null) {
+            map.put(current, hourlyArray.subList(start, hourlyArray.size()));
+        }
 
         dailyArray.forEach(day -> {
-            var date = day.getLocalDate(this.timezone.get()).toString();
-
-            map.forEach((k, v) -> {
-                if (k.equalsIgnoreCase(date)) {
-                    day.setHourlyWeather(Optional.of(v));
-                }
-            });
+            var hours = map.get(day.getLocalDate(this.timezone.get()).toString());
+            if (hours != null) {
+                day.setHourlyWeather(Optional.of(hours));
+            }
         });
 
         return Optional.of(dailyArray);
@@ -362,7 +644,7 @@ public class WeatherLocation {
             builder.population(object.get("population").getAsInt());
         }
         if (object.has("last_updated")) {
-            builder.lastUpdated(object.get("last_updated").getAsInt());
+            builder.lastUpdated(object.get("last_updated").getAsLong());
         }
 
         return builder.build();
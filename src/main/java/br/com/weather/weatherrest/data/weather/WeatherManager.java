@@ -1,98 +1,174 @@
 package br.com.weather.weatherrest.data.weather;
 
-import java.math.RoundingMode;
-import java.text.DecimalFormat;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.JsonObject;
 
 import br.com.weather.weatherrest.WeatherRestApplication;
+import br.com.weather.weatherrest.database.ForecastSnapshot;
 import br.com.weather.weatherrest.database.StorageTask;
 import br.com.weather.weatherrest.database.WeatherStorage;
 
 public final class WeatherManager {
+    private final static double NEAREST_RADIUS_KM = Double
+            .parseDouble(System.getProperty("weather.search.radiusKm", "2"));
+    // lazy: only the stored ids are read at boot, locations are built on first access
+    private final static boolean LAZY_LOAD = Boolean.parseBoolean(System.getProperty("weather.db.lazyLoad", "true"));
+    private final static int MAX_NAME_RESULTS = Integer.getInteger("weather.search.maxResults", 50);
+    private final static int WARMUP_SIZE = Integer.getInteger("weather.db.warmupSize", 500);
+    private final static boolean SNAPSHOT_ENABLED = Boolean
+            .parseBoolean(System.getProperty("weather.snapshot.enabled", "true"));
+    private final static long SNAPSHOT_INTERVAL_MS = TimeUnit.SECONDS
+            .toMillis(Integer.getInteger("weather.snapshot.intervalSeconds", 300));
+    private final static Path SNAPSHOT_PATH = Path.of(System.getProperty("user.dir"), "locations.snapshot");
+    private final static long FORECAST_MAX_BYTES = Long.getLong("weather.cache.maxBytes", 256L * 1024 * 1024);
+    private final static ForecastBatcher batcher = new ForecastBatcher(
+            Long.getLong("weather.meteo.batchWindowMs", 20), Integer.getInteger("weather.meteo.batchSize", 50));
     private final static StorageTask task = new StorageTask();
-    private final static HashMap<Integer, WeatherLocation> locations = new HashMap<>();
+    private final static LocationRegistry locations = new LocationRegistry();
+    private final static ForecastCache forecasts = new ForecastCache(FORECAST_MAX_BYTES, locations,
+            WeatherManager::evictForecasts);
+    private final static RefreshScheduler refresher = new RefreshScheduler(locations);
+    private final static ResponseCache responses = new ResponseCache();
+    private final static NameIndex names = new NameIndex(locations);
+    private final static SpatialIndex coordinates = new SpatialIndex();
     private final static SearchPatterns patterns = new SearchPatterns(
             System.getProperty("user.dir") + "/patterns.json");
+    // write-behind: ids whose state changed since they were last persisted
+    private final static Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+    private final static LongAdder flushed = new LongAdder();
+    // ids asked for since their access stats were last persisted
+    private final static Set<Integer> accessed = ConcurrentHashMap.newKeySet();
+    private final static LongAdder hydrated = new LongAdder();
+    // as many as /hot can ask for
+    private final static HotLocations hot = new HotLocations(Integer.getInteger("weather.hot.maxK", 100));
+    private static volatile int[] stored = new int[0];
+    // what was loaded when the snapshot was last written, mapped on boot and after every write
+    private static volatile Optional<ForecastSnapshot> snapshot = Optional.empty();
+    // 0 writes one on the first flush, a node booted without a snapshot gets a warm file right away
+    private static volatile long snapshotAt;
+    private final static LongAdder snapshotReads = new LongAdder();
     private final static WeatherStorage storage = new WeatherStorage(System.getProperty("user.dir") + "/locations.db");
 
-    public static Optional<WeatherLocation> getById(int id) {
-        var location = locations.get(id);
+    public static CompletableFuture<Optional<WeatherLocation>> getByIdAsync(int id) {
+        var location = lookup(id);
 
         if (location != null) {
-            location.updateData();
-            location.setLastAccessed(System.currentTimeMillis());
-            return Optional.of(location);
+            recordAccess(location, System.currentTimeMillis());
+            return location.updateDataAsync().thenApply(Optional::of);
+        }
+
+        return CompletableFuture.completedFuture(Optional.empty());
+    }
+
+    /*
+     * resolves every known id, refreshing the outdated ones together. unknown
+     * ids are left out, the order of the ones found is kept.
+     */
+    public static CompletableFuture<List<WeatherLocation>> getByIdsAsync(List<Integer> ids) {
+        var found = new ArrayList<WeatherLocation>(ids.size());
+        var now = System.currentTimeMillis();
+        for (var id : ids) {
+            var location = lookup(id);
+            if (location != null) {
+                recordAccess(location, now);
+                found.add(location);
+            }
         }
 
-        return Optional.empty();
+        return WeatherLocation.updateAllAsync(found).thenApply((v) -> found);
     }
 
-    public static Optional<List<WeatherLocation>> getByName(String name) {
+    public static CompletableFuture<Optional<List<WeatherLocation>>> getByNameAsync(String name) {
         var normalized = MeteoAPI.normalize(name);
-        List<WeatherLocation> list = locations.values()
-                .stream()
-                .filter((w) -> Pattern.matches("(?i)^.*" + normalized + ".*$", w.getNormalizedName()))
-                .collect(Collectors.toList());
-
-        if (list.isEmpty() || !patterns.contains(normalized.toLowerCase())) {
-            MeteoAPI.requestLocationByName(normalized)
-                    .ifPresent((l) -> {
+        var known = patterns.contains(normalized.toLowerCase());
+        List<WeatherLocation> list = names.search(normalized);
+        var seen = new HashSet<Integer>();
+        list.forEach((w) -> seen.add(w.getId()));
+
+        if (!list.isEmpty() && known) {
+            return CompletableFuture.completedFuture(Optional.of(list));
+        }
+
+        if (LAZY_LOAD) {
+            // the name index only knows the loaded locations. stored ones are only
+            // read to answer, they get loaded when someone opens them
+            storage.queryLocation(normalized, MAX_NAME_RESULTS).ifPresent((l) -> l.forEach((w) -> {
+                if (seen.add(w.getId())) {
+                    var loaded = locations.get(w.getId());
+                    list.add(loaded != null ? loaded : w);
+                }
+            }));
+
+            if (!list.isEmpty() && known) {
+                return CompletableFuture.completedFuture(Optional.of(list));
+            }
+        }
+
+        return MeteoAPI.requestLocationByNameAsync(normalized)
+                .thenApply((result) -> {
+                    result.ifPresent((l) -> {
                         l.forEach((w) -> {
-                            if (!locations.containsKey(w.getId())) {
-                                list.add(w);
-                                locations.put(w.getId(), w);
+                            var existing = register(w);
+                            if (seen.add(w.getId())) {
+                                list.add(existing != null ? existing : w);
                             }
                         });
                     });
 
-            patterns.add(normalized);
-        }
-
-        return Optional.of(list).filter((l) -> !l.isEmpty());
+                    patterns.add(normalized);
+                    return Optional.of(list).filter((l) -> !l.isEmpty());
+                });
     }
 
-    public static Optional<WeatherLocation> getByCoords(String latitude, String longitude) {
-        List<WeatherLocation> found;
-        String fLat, fLong;
+    public static CompletableFuture<Optional<WeatherLocation>> getByCoordsAsync(String latitude, String longitude) {
+        double lat, lng;
         try {
-            var dFormat = new DecimalFormat("#.##");
-            dFormat.setRoundingMode(RoundingMode.DOWN);
-
-            fLat = dFormat.format(dFormat.parse(latitude));
-            fLong = dFormat.format(dFormat.parse(longitude));
-
-            found = locations.values().stream().filter(l -> {
-                var wL = dFormat.format(l.getLatitude());
-                var wLn = dFormat.format(l.getLongitude());
-
-                return (wL.equals(fLat) && wLn.equals(fLong));
-            }).toList();
+            lat = Double.parseDouble(latitude);
+            lng = Double.parseDouble(longitude);
         } catch (Exception e) {
             e.printStackTrace();
-            return Optional.empty();
+            return CompletableFuture.completedFuture(Optional.empty());
         }
 
-        if (!found.isEmpty()) {
-            return Optional.of(found.get(0));
+        if (Math.abs(lat) > 90 || Math.abs(lng) > 180) {
+            return CompletableFuture.completedFuture(Optional.empty());
         }
 
-        var loc = MeteoAPI.requestLocationByCoods(fLat, fLong);
+        var found = coordinates.nearest(lat, lng, NEAREST_RADIUS_KM);
+        if (found.isEmpty() && LAZY_LOAD) {
+            found = storage.queryNearest(lat, lng, NEAREST_RADIUS_KM).map(WeatherManager::hydrate);
+        }
+        if (found.isPresent()) {
+            return CompletableFuture.completedFuture(found);
+        }
 
-        if (loc.isPresent()) {
-            var cachedLoc = WeatherManager.getById(loc.get().getId());
-            if (cachedLoc.isPresent()) {
-                return cachedLoc;
-            }
+        return MeteoAPI.requestLocationByCoodsAsync(String.valueOf(lat), String.valueOf(lng))
+                .thenCompose((loc) -> {
+                    if (loc.isEmpty()) {
+                        return CompletableFuture.completedFuture(Optional.<WeatherLocation>empty());
+                    }
 
-            locations.put(loc.get().getId(), loc.get());
-            return loc;
-        }
+                    var cached = lookup(loc.get().getId());
+                    if (cached != null) {
+                        return getByIdAsync(cached.getId());
+                    }
 
-        return Optional.empty();
+                    var existing = register(loc.get());
+                    return CompletableFuture.completedFuture(existing != null ? Optional.of(existing) : loc);
+                });
     }
 
     public static WeatherStorage getWeatherStorage() {
@@ -102,35 +178,314 @@ public final class WeatherManager {
     public static void initialize() {
         loadLocations();
         task.start();
+        refresher.start();
     }
 
+    /*
+     * persists what changed since the last flush, in one transaction. an id
+     * marked again while this runs just stays for the next flush.
+     */
     public static void storeLocations() {
-        storage.store(locations.values());
+        var batch = new ArrayList<WeatherLocation>(dirty.size());
+        for (var id : dirty) {
+            var location = locations.get(id);
+            if (dirty.remove(id) && location != null) {
+                batch.add(location);
+            }
+        }
+        persist(batch);
+    }
+
+    // access stats of the locations asked for since the last flush
+    public static void storeStats() {
+        var batch = new ArrayList<WeatherLocation>(accessed.size());
+        for (var id : accessed) {
+            var location = locations.get(id);
+            if (accessed.remove(id) && location != null) {
+                batch.add(location);
+            }
+        }
+
+        if (!storage.storeStats(batch)) {
+            batch.forEach((w) -> accessed.add(w.getId()));
+        }
+    }
+
+    // every loaded location with a forecast, at most once per interval
+    public static void storeSnapshot() {
+        var now = System.currentTimeMillis();
+        if (!SNAPSHOT_ENABLED || now - snapshotAt < SNAPSHOT_INTERVAL_MS) {
+            return;
+        }
+        snapshotAt = now;
+
+        var loaded = new ArrayList<WeatherLocation>();
+        locations.forEach((w) -> {
+            if (w.hasForecast()) {
+                loaded.add(w);
+            }
+        });
+        if (loaded.isEmpty()) {
+            return;
+        }
+        snapshot = ForecastSnapshot.write(SNAPSHOT_PATH, loaded, snapshot);
+        WeatherRestApplication.logger.info("wrote " + loaded.size() + " locations to the snapshot in "
+                + (System.currentTimeMillis() - now) + " ms.");
+    }
+
+    /*
+     * the location as the snapshot has it, forecast included. only worth
+     * using while nothing newer than it was fetched.
+     */
+    public static Optional<WeatherLocation> readSnapshot(int id) {
+        var found = snapshot.flatMap((s) -> s.get(id));
+        if (found.isPresent()) {
+            snapshotReads.increment();
+        }
+        return found;
+    }
+
+    /*
+     * the k hottest locations right now. the stored ranking is as of the
+     * last flush, the loaded locations have newer counts, so both are
+     * merged by their current hotness.
+     */
+    /*
+     * the k hottest locations: the loaded ones come from the hot set, kept up
+     * to date on access, the rest from the stored stats. stored rows are only
+     * read to rank them, only /location loads a location.
+     */
+    public static List<WeatherLocation> getHottest(int k) {
+        var now = System.currentTimeMillis();
+        var candidates = new HashMap<Integer, WeatherLocation>();
+        storage.queryHottest(k).ifPresent((l) -> l.forEach((w) -> {
+            var loaded = locations.get(w.getId());
+            candidates.put(w.getId(), loaded != null ? loaded : w);
+        }));
+        for (var id : hot.getIds()) {
+            var loaded = locations.get(id);
+            if (loaded != null) {
+                candidates.put(id, loaded);
+            }
+        }
+
+        var hottest = new ArrayList<>(candidates.values());
+        hottest.sort(Comparator.comparingDouble((WeatherLocation w) -> w.getHotness(now)).reversed());
+        return hottest.size() > k ? hottest.subList(0, k) : hottest;
+    }
+
+    public static void markDirty(WeatherLocation location) {
+        dirty.add(location.getId());
+    }
+
+    public static JsonObject getStorageStats() {
+        var obj = new JsonObject();
+        obj.addProperty("pending", dirty.size());
+        obj.addProperty("flushed", flushed.sum());
+        obj.addProperty("stats_pending", accessed.size());
+        obj.addProperty("loaded", locations.size());
+        obj.addProperty("hydrated", hydrated.sum());
+        obj.addProperty("snapshot_entries", snapshot.map(ForecastSnapshot::size).orElse(0));
+        obj.addProperty("snapshot_reads", snapshotReads.sum());
+        return obj;
     }
 
     public static void storePatterns() {
         patterns.storePatterns();
     }
 
+    public static ForecastCache getForecastCache() {
+        return forecasts;
+    }
+
+    public static RefreshScheduler getRefreshScheduler() {
+        return refresher;
+    }
+
+    public static ForecastBatcher getForecastBatcher() {
+        return batcher;
+    }
+
+    public static ResponseCache getResponseCache() {
+        return responses;
+    }
+
+    // encoded /location body and its validators, kept around while the location's forecast is cached
+    public static ResponseCache.Body getLocationBody(WeatherLocation location, boolean gzip) {
+        return responses.get(location, gzip, forecasts.isResident(location.getId()));
+    }
+
+    public static void admitForecast(WeatherLocation location) {
+        if (location.hasForecast()) {
+            forecasts.admit(location);
+        }
+    }
+
+    /*
+     * drops forecasts idle for too long, plus the ones the forecast cache
+     * didn't admit. runs right after storeLocations, anything changed since
+     * is kept until the next flush.
+     */
     public static void clearLocations() {
-        locations.values().forEach((w) -> {
-            if (w.canClear()) {
+        locations.forEach((w) -> {
+            if (w.hasForecast() && !dirty.contains(w.getId())
+                    && (w.canClear() || !forecasts.isResident(w.getId()))) {
+                forecasts.remove(w.getId());
+                responses.remove(w.getId());
                 w.setCurrentWeather(Optional.empty());
                 w.setDailyWeather(Optional.empty());
             }
         });
     }
 
+    /*
+     * forecast cache victims. runs on whatever thread admitted a forecast, so
+     * nothing is written here: unsaved victims keep their data until the
+     * next flush persists them, then clearLocations drops it.
+     */
+    private static void evictForecasts(List<WeatherLocation> victims) {
+        victims.forEach((w) -> {
+            if (!dirty.contains(w.getId())) {
+                responses.remove(w.getId());
+                w.setCurrentWeather(Optional.empty());
+                w.setDailyWeather(Optional.empty());
+            }
+        });
+    }
+
+    // failed writes go back to the queue for the next flush
+    private static void persist(List<WeatherLocation> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        if (storage.store(batch)) {
+            flushed.add(batch.size());
+        } else {
+            batch.forEach(WeatherManager::markDirty);
+        }
+    }
+
+    private static void recordAccess(WeatherLocation location, long now) {
+        location.recordAccess(now);
+        hot.update(location.getId(), WeatherLocation.hotnessRank(location.getHotness(now), now));
+        forecasts.recordAccess(location);
+        accessed.add(location.getId());
+    }
+
+    /*
+     * the loaded location with this id, or the stored one, built and indexed
+     * on the spot. null if neither exists.
+     */
+    private static WeatherLocation lookup(int id) {
+        var location = locations.get(id);
+        if (location != null || !LAZY_LOAD) {
+            return location;
+        }
+
+        /*
+         * the db row comes first, it's flushed more often than the snapshot is
+         * written. its forecast still loads from the snapshot when that one is
+         * as new (setDataFromDB). ids only the snapshot has weren't flushed.
+         */
+        if (Arrays.binarySearch(stored, id) >= 0) {
+            var row = storage.queryLocation(id);
+            if (row.isPresent()) {
+                return hydrate(row.get());
+            }
+        }
+        return readSnapshot(id).map((w) -> {
+            var loaded = hydrate(w);
+            markDirty(loaded);
+            return loaded;
+        }).orElseGet(() -> locations.get(id));
+    }
+
+    // a location read from the db, or the instance that got loaded first
+    private static WeatherLocation hydrate(WeatherLocation location) {
+        var existing = index(location);
+        if (existing != null) {
+            return existing;
+        }
+        hydrated.increment();
+        admitForecast(location);
+        return location;
+    }
+
+    // a location found on meteo, not stored yet
+    private static WeatherLocation register(WeatherLocation location) {
+        // may be stored and just not loaded yet
+        var loaded = lookup(location.getId());
+        if (loaded != null) {
+            return loaded;
+        }
+
+        var existing = index(location);
+        if (existing == null) {
+            markDirty(location);
+        }
+        return existing;
+    }
+
+    /*
+     * returns the location already known under the same id, or null if this
+     * one got registered (and indexed).
+     */
+    private static WeatherLocation index(WeatherLocation location) {
+        var existing = locations.putIfAbsent(location);
+        if (existing == null) {
+            names.add(location);
+            coordinates.add(location);
+        }
+        return existing;
+    }
+
     private static void loadLocations() {
         var before = System.currentTimeMillis();
+        if (SNAPSHOT_ENABLED) {
+            snapshot = ForecastSnapshot.open(SNAPSHOT_PATH);
+            snapshot.ifPresent((s) -> {
+                // the mapped file stays until a full interval had time to load the working set again
+                snapshotAt = before;
+                WeatherRestApplication.logger.info("mapped a snapshot of " + s.size()
+                        + " locations in " + (System.currentTimeMillis() - before) + " ms.");
+            });
+        }
+
+        if (LAZY_LOAD) {
+            storage.queryLocationIds().ifPresent((ids) -> {
+                stored = ids;
+                var after = System.currentTimeMillis() - before;
+                WeatherRestApplication.logger.info("indexed " + ids.length + " location ids in " + after + " ms.");
+            });
+            warmUp();
+            return;
+        }
+
         storage.queryLocations()
                 .ifPresent(l -> {
                     l.forEach(loc -> {
-                        locations.put(loc.getId(), loc);
+                        index(loc);
                     });
 
                     var after = System.currentTimeMillis() - before;
                     WeatherRestApplication.logger.info("loaded " + l.size() + " locations in " + after + " ms.");
                 });
     }
+
+    // loads the likeliest locations in the background, requests don't wait for it
+    private static void warmUp() {
+        if (WARMUP_SIZE <= 0) {
+            return;
+        }
+
+        MeteoClient.daemonFactory("warmup-").newThread(() -> {
+            var before = System.currentTimeMillis();
+            storage.queryHottest(WARMUP_SIZE).ifPresent((l) -> {
+                l.forEach(WeatherManager::hydrate);
+                var after = System.currentTimeMillis() - before;
+                WeatherRestApplication.logger.info("warmed up " + l.size() + " locations in " + after + " ms.");
+            });
+        }).start();
+    }
 }
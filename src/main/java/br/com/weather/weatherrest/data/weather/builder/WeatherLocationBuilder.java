@@ -96,7 +96,7 @@ public final class WeatherLocationBuilder {
     }
 
     public WeatherLocationBuilder timezone(String timezone) {
-        if (timezone != null && timezone != "none") {
+        if (timezone != null && !"none".equals(timezone)) {
             this.timezone = Optional.of(timezone);
         }
         return this;
@@ -113,7 +113,7 @@ public final class WeatherLocationBuilder {
     }
 
     public WeatherLocationBuilder admin1(String admin1) {
-        if (admin1 != null && admin1 != "none") {
+        if (admin1 != null && !"none".equals(admin1)) {
             this.admin1 = Optional.of(admin1);
         }
 
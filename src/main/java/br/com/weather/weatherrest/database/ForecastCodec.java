@@ -0,0 +1,236 @@
+package br.com.weather.weatherrest.database;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import br.com.weather.weatherrest.data.weather.HourlySeries;
+import br.com.weather.weatherrest.data.weather.HourlyVariable;
+import br.com.weather.weatherrest.data.weather.HourlyWeather;
+import br.com.weather.weatherrest.data.weather.WeatherCode;
+
+/*
+ * binary layout of a stored hourly forecast:
+ *
+ *   byte    format version
+ *   varint  rows, then the deflated body:
+ *     varint  first timestamp, then each timestamp as the delta to the last
+ *     per variable, in HourlyVariable order, a mode byte and then
+ *       quantized: every value times the variable scale, as the zigzag
+ *                  delta to the previous row
+ *       raw:       the float bits of every value, xor the previous row's
+ *     varint  weather code of each row
+ *     bytes   is_day, one bit per row
+ *
+ * hours change slowly, so deltas are mostly 0 or 1 byte varints and
+ * deflate squeezes the runs. a column is only quantized when every value
+ * comes back as the exact same float, otherwise it's kept raw, so a decoded
+ * forecast serves the same bytes as the one meteo sent.
+ */
+public final class ForecastCodec {
+    private static final byte FORMAT_VERSION = 1, QUANTIZED = 0, RAW = 1;
+
+    private ForecastCodec() {
+    }
+
+    public static byte[] encode(List<HourlyWeather> hours) {
+        var variables = HourlyVariable.all();
+        var body = new Buffer(hours.size() * (variables.length + 4));
+
+        var last = 0L;
+        for (var hour : hours) {
+            body.writeVarLong(hour.getTimestamp() - last);
+            last = hour.getTimestamp();
+        }
+
+        for (var variable : variables) {
+            if (isQuantizable(hours, variable)) {
+                body.write(QUANTIZED);
+                var previous = 0L;
+                for (var hour : hours) {
+                    var value = quantize(hour.get(variable), variable.getScale());
+                    body.writeVarLong(zigzag(value - previous));
+                    previous = value;
+                }
+            } else {
+                body.write(RAW);
+                var previous = 0;
+                for (var hour : hours) {
+                    var bits = Float.floatToIntBits((float) hour.get(variable));
+                    body.writeVarLong(Integer.toUnsignedLong(bits ^ previous));
+                    previous = bits;
+                }
+            }
+        }
+
+        for (var hour : hours) {
+            body.writeVarLong(hour.getWeatherCode().getCode());
+        }
+
+        var day = new byte[(hours.size() + 7) / 8];
+        for (int i = 0; i < hours.size(); i++) {
+            if (hours.get(i).isDay()) {
+                day[i >> 3] |= 1 << (i & 7);
+            }
+        }
+        body.write(day, 0, day.length);
+
+        var out = new Buffer(body.size() / 2 + 16);
+        out.write(FORMAT_VERSION);
+        out.writeVarLong(hours.size());
+        deflate(body.toByteArray(), out);
+        return out.toByteArray();
+    }
+
+    public static HourlySeries decode(byte[] data) throws DataFormatException {
+        var header = new Reader(data, 0);
+        var version = header.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new DataFormatException("unknown hourly format " + version);
+        }
+
+        var rows = (int) header.readVarLong();
+        var body = new Reader(inflate(data, header.position), 0);
+        var series = new HourlySeries(rows);
+
+        var last = 0L;
+        for (int i = 0; i < rows; i++) {
+            last += body.readVarLong();
+            series.setTimestamp(i, last);
+        }
+
+        for (var variable : HourlyVariable.all()) {
+            if (body.readByte() == RAW) {
+                var bits = 0;
+                for (int i = 0; i < rows; i++) {
+                    bits ^= (int) body.readVarLong();
+                    series.set(variable, i, Float.intBitsToFloat(bits));
+                }
+                continue;
+            }
+
+            var value = 0L;
+            for (int i = 0; i < rows; i++) {
+                value += unzigzag(body.readVarLong());
+                series.set(variable, i, dequantize(value, variable.getScale()));
+            }
+        }
+
+        for (int i = 0; i < rows; i++) {
+            series.setWeatherCode(i, WeatherCode.valueOf((int) body.readVarLong()));
+        }
+
+        for (int i = 0; i < rows; i++) {
+            series.setDay(i, (body.data[body.position + (i >> 3)] & (1 << (i & 7))) != 0);
+        }
+        return series;
+    }
+
+    // whether every value of the column survives quantize + dequantize bit for bit
+    private static boolean isQuantizable(List<HourlyWeather> hours, HourlyVariable variable) {
+        for (var hour : hours) {
+            var value = hour.get(variable);
+            var decoded = dequantize(quantize(value, variable.getScale()), variable.getScale());
+            if (!Double.isFinite(value) || Float.floatToIntBits(decoded) != Float.floatToIntBits((float) value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long quantize(double value, int scale) {
+        return Double.isFinite(value) ? Math.round(value * scale) : 0;
+    }
+
+    // narrowed the way HourlySeries stores it
+    private static float dequantize(long value, int scale) {
+        return (float) ((double) value / scale);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void deflate(byte[] body, Buffer out) {
+        var deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+            var chunk = new byte[1024];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int offset) throws DataFormatException {
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, data.length - offset);
+            var out = new byte[Math.max(64, (data.length - offset) * 4)];
+            var size = 0;
+            while (!inflater.finished()) {
+                if (size == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                var read = inflater.inflate(out, size, out.length - size);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("truncated hourly data");
+                }
+                size += read;
+            }
+            return Arrays.copyOf(out, size);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static final class Buffer extends ByteArrayOutputStream {
+        private Buffer(int size) {
+            super(size);
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                this.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            this.write((int) value);
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] data;
+        private int position;
+
+        private Reader(byte[] data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        private byte readByte() {
+            return this.data[this.position++];
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                var b = this.data[this.position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("malformed varint");
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package br.com.weather.weatherrest.database;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+
+import br.com.weather.weatherrest.WeatherRestApplication;
+
+import br.com.weather.weatherrest.data.weather.CurrentWeather;
+import br.com.weather.weatherrest.data.weather.DailyWeather;
+import br.com.weather.weatherrest.data.weather.HourlyWeather;
+import br.com.weather.weatherrest.data.weather.WeatherCode;
+import br.com.weather.weatherrest.data.weather.WeatherLocation;
+
+/*
+ * the loaded locations with their forecasts in one file, rewritten whole
+ * every so often and mapped read only on boot:
+ *
+ *   int     magic, format version, entries
+ *   int[2]  per entry, ascending: location id, offset of its record
+ *   records location fields, access stats, current weather, the days and
+ *           the hours of all days as one ForecastCodec blob
+ *
+ * lookups binary search the mapped index and decode one record, nothing
+ * else is read until it's asked for. a new snapshot replaces the mapped
+ * one: the old mapping is closed before the file is moved over it, then
+ * the new file gets mapped.
+ */
+public final class ForecastSnapshot {
+    private static final int MAGIC = 0x57534e50, FORMAT_VERSION = 1, HEADER = 12, ENTRY = 8;
+
+    private final MappedByteBuffer buffer;
+    private final int entries;
+    // reads hold it shared, unmapping exclusively, so nobody touches unmapped memory
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    private ForecastSnapshot(MappedByteBuffer buffer, int entries) {
+        this.buffer = buffer;
+        this.entries = entries;
+    }
+
+    public static Optional<ForecastSnapshot> open(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+
+        // the mapping stays valid after the channel is closed
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+                return Optional.empty();
+            }
+
+            var entries = buffer.getInt(8);
+            if (entries < 0 || HEADER + (long) entries * ENTRY > buffer.limit()) {
+                return Optional.empty();
+            }
+            return Optional.of(new ForecastSnapshot(buffer, entries));
+        } catch (Exception e) {
+            WeatherRestApplication.logger.warn("couldn't map the snapshot " + file, e);
+        }
+        return Optional.empty();
+    }
+
+    // unmaps now instead of whenever the buffer gets collected, the file can be replaced after this
+    public void close() {
+        this.lock.writeLock().lock();
+        try {
+            if (!this.closed) {
+                this.closed = true;
+                unmap(this.buffer);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        return this.entries;
+    }
+
+    public Optional<WeatherLocation> get(int id) {
+        this.lock.readLock().lock();
+        try {
+            if (this.closed) {
+                return Optional.empty();
+            }
+
+            var low = 0;
+            var high = this.entries - 1;
+            while (low <= high) {
+                var mid = (low + high) >>> 1;
+                var entry = this.buffer.getInt(HEADER + mid * ENTRY);
+                if (entry < id) {
+                    low = mid + 1;
+                } else if (entry > id) {
+                    high = mid - 1;
+                } else {
+                    return Optional.of(read(this.buffer.duplicate().position(this.buffer.getInt(HEADER + mid * ENTRY + 4))));
+                }
+            }
+        } catch (Exception e) {
+            // a truncated or mangled record, the db still has it
+            WeatherRestApplication.logger.warn("bad snapshot record for " + id, e);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        return Optional.empty();
+    }
+
+    /*
+     * writes the locations next to file, then swaps it in: the current
+     * mapping is closed, the new file moved over the old one and mapped.
+     * returns the mapping to use from now on, the old file again if the
+     * new one couldn't be written or moved.
+     */
+    public static Optional<ForecastSnapshot> write(Path file, Collection<WeatherLocation> locations,
+            Optional<ForecastSnapshot> mapped) {
+        var temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            writeFile(temp, locations);
+        } catch (Exception e) {
+            WeatherRestApplication.logger.warn("couldn't write the snapshot " + temp, e);
+            return mapped;
+        }
+
+        mapped.ifPresent(ForecastSnapshot::close);
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            WeatherRestApplication.logger.warn("couldn't replace the snapshot " + file, e);
+        }
+        return open(file);
+    }
+
+    // records are streamed after the room left for the index, which is written last at the start
+    private static void writeFile(Path temp, Collection<WeatherLocation> locations) throws IOException {
+        var sorted = new ArrayList<>(locations);
+        sorted.sort(Comparator.comparingInt(WeatherLocation::getId));
+        var now = System.currentTimeMillis();
+        var base = HEADER + sorted.size() * ENTRY;
+        var head = ByteBuffer.allocate(base);
+        head.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(sorted.size());
+
+        try (var channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(base);
+            // not closed, that would close the channel before the index is in
+            var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            for (var location : sorted) {
+                head.putInt(location.getId()).putInt(base + out.size());
+                write(out, location, now);
+            }
+            out.flush();
+
+            head.flip();
+            var position = 0L;
+            while (head.hasRemaining()) {
+                position += channel.write(head, position);
+            }
+            channel.force(false);
+        }
+    }
+
+    // there's no public unmap, the jdk's own cleaner is reached through unsafe
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            var field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            var unsafe = field.get(null);
+            unsafe.getClass().getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // left to the gc, the file may stay locked on windows until then
+            WeatherRestApplication.logger.warn("couldn't unmap the snapshot", e);
+        }
+    }
+
+    private static void write(DataOutputStream out, WeatherLocation location, long now) throws IOException {
+        out.writeInt(location.getId());
+        writeString(out, location.getName());
+        writeString(out, location.getCountry());
+        writeString(out, location.getCountryCode());
+        writeString(out, location.getTimeZone().orElse(null));
+        writeString(out, location.getAdmin1().orElse(null));
+        out.writeDouble(location.getLatitude());
+        out.writeDouble(location.getLongitude());
+        out.writeInt(location.getPopulation().orElse(0));
+        out.writeLong(location.getLastUpdated());
+
+        out.writeLong(location.getHits());
+        out.writeDouble(location.getHotness(now));
+        out.writeLong(now);
+        out.writeLong(location.getLastAcessed());
+
+        var current = location.getCurrentWeather();
+        out.writeBoolean(current.isPresent());
+        if (current.isPresent()) {
+            out.writeLong(current.get().getTimestamp());
+            out.writeDouble(current.get().getTemperature());
+            out.writeDouble(current.get().getWindSpeed());
+            out.writeDouble(current.get().getWindDirection());
+            out.writeInt(current.get().getCode().getCode());
+        }
+
+        var days = location.getDailyWeather().orElse(List.of());
+        var hours = new ArrayList<HourlyWeather>();
+        out.writeBoolean(location.getDailyWeather().isPresent());
+        out.writeShort(days.size());
+        for (var day : days) {
+            out.writeLong(day.getTimestamp());
+            out.writeDouble(day.getMaxTemp());
+            out.writeDouble(day.getMinTemp());
+            out.writeDouble(day.getAppMaxTemp());
+            out.writeDouble(day.getAppMinTemp());
+            out.writeDouble(day.getPrecipitationSum());
+            out.writeDouble(day.getRainSum());
+            out.writeDouble(day.getShowersSum());
+            out.writeDouble(day.getSnowfallSum());
+            out.writeDouble(day.getPrecipitationHours());
+            out.writeDouble(day.getWindSpeed());
+            out.writeDouble(day.getWindGust());
+            out.writeDouble(day.getWindDirection());
+            out.writeLong(day.getSunrise());
+            out.writeLong(day.getSunset());
+            out.writeInt(day.getWeatherCode().getCode());
+            day.getHourlyWeather().ifPresent(hours::addAll);
+        }
+
+        var blob = hours.isEmpty() ? new byte[0] : ForecastCodec.encode(hours);
+        out.writeInt(blob.length);
+        out.write(blob);
+    }
+
+    private static WeatherLocation read(ByteBuffer in) throws DataFormatException {
+        var builder = WeatherLocation.getBuilder()
+                .id(in.getInt())
+                .name(readString(in))
+                .country(readString(in))
+                .countryCode(readString(in))
+                .timezone(readString(in))
+                .admin1(readString(in))
+                .latitude(in.getDouble())
+                .longitude(in.getDouble())
+                .population(in.getInt())
+                .lastUpdated(in.getLong());
+
+        var hits = in.getLong();
+        var hotness = in.getDouble();
+        var hotnessAt = in.getLong();
+        var lastAccessed = in.getLong();
+
+        if (in.get() != 0) {
+            var timestamp = in.getLong();
+            builder.currentWeather(new CurrentWeather(in.getDouble(), in.getDouble(), in.getDouble(),
+                    WeatherCode.valueOf(in.getInt()), timestamp));
+        }
+
+        var hasDaily = in.get() != 0;
+        var count = in.getShort();
+        var days = new ArrayList<DailyWeather>(count);
+        for (int i = 0; i < count; i++) {
+            days.add(DailyWeather.getBuilder()
+                    .timestamp(in.getLong())
+                    .maxTemperature(in.getDouble())
+                    .minTemperature(in.getDouble())
+                    .appMaxTemperature(in.getDouble())
+                    .appMinTemperature(in.getDouble())
+                    .precipitationSum(in.getDouble())
+                    .rainSum(in.getDouble())
+                    .showersSum(in.getDouble())
+                    .snowfallSum(in.getDouble())
+                    .precipitationHours(in.getDouble())
+                    .windSpeed(in.getDouble())
+                    .windGust(in.getDouble())
+                    .windDirection(in.getDouble())
+                    .sunrise(in.getLong())
+                    .sunset(in.getLong())
+                    .weatherCode(WeatherCode.valueOf(in.getInt()))
+                    .build());
+        }
+
+        var blob = new byte[in.getInt()];
+        in.get(blob);
+        if (blob.length > 0 && !days.isEmpty()) {
+            WeatherStorage.attachHours(days, ForecastCodec.decode(blob));
+        }
+        if (hasDaily) {
+            builder.dailyWeather(days);
+        }
+
+        var location = builder.build();
+        location.restoreAccess(hits, hotness, hotnessAt, lastAccessed);
+        return location;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeShort(-1);
+            return;
+        }
+        var bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        var length = in.getShort();
+        if (length < 0) {
+            return null;
+        }
+        var bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
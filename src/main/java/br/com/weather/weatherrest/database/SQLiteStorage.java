@@ -1,37 +1,173 @@
 package br.com.weather.weatherrest.database;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.sqlite.SQLiteConfig;
 import org.sqlite.SQLiteConnection;
 import org.sqlite.SQLiteDataSource;
 
+/*
+ * the database in wal mode: one writer connection, used by a single thread
+ * at a time, and a small pool of read only connections that read in
+ * parallel with it. every connection keeps its own prepared statements.
+ */
 public class SQLiteStorage {
-    private final SQLiteDataSource dataSource;
-    private SQLiteConnection connection;
+    private static final int READERS = Integer.getInteger("weather.db.readers", 4);
+    private static final int BUSY_TIMEOUT_MS = Integer.getInteger("weather.db.busyTimeout", 5000);
+
+    private final SQLiteDataSource writerSource, readerSource;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ConcurrentLinkedQueue<Handle> readers = new ConcurrentLinkedQueue<>();
+    private final Semaphore readerPermits = new Semaphore(READERS);
+    private Handle writer;
+
+    public SQLiteStorage(String dbpath) {
+        var writerConfig = new SQLiteConfig();
+        writerConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        // wal + normal only syncs on checkpoints, a crash can lose the last commits but never corrupts
+        writerConfig.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        writerConfig.setBusyTimeout(BUSY_TIMEOUT_MS);
+        this.writerSource = new SQLiteDataSource(writerConfig);
+        this.writerSource.setUrl("jdbc:sqlite:" + dbpath);
 
-    public SQLiteStorage(String dbpath){
-        this.dataSource = new SQLiteDataSource();
-        this.connection = null;
-        this.dataSource.setUrl("jdbc:sqlite:" + dbpath);
+        var readerConfig = new SQLiteConfig();
+        readerConfig.setReadOnly(true);
+        readerConfig.setBusyTimeout(BUSY_TIMEOUT_MS);
+        this.readerSource = new SQLiteDataSource(readerConfig);
+        this.readerSource.setUrl("jdbc:sqlite:" + dbpath);
     }
 
-    public SQLiteConnection getConnection(){
-        if(this.connection != null) return this.connection;
+    // runs on the writer connection, one caller at a time
+    public <T> T write(SqlWork<T> work) throws SQLException {
+        this.writeLock.lock();
         try {
-            this.connection = (SQLiteConnection)this.dataSource.getConnection();
-            return this.connection;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+            if (this.writer == null) {
+                this.writer = new Handle((SQLiteConnection) this.writerSource.getConnection());
+            }
+            return work.run(this.writer);
+        } finally {
+            // a failed statement leaves the connection usable, only a closed one is replaced
+            if (this.writer != null && !this.writer.isOpen()) {
+                this.writer = this.discard(this.writer);
+            }
+            this.writeLock.unlock();
+        }
+    }
+
+    // runs on a pooled reader, waits for one when they're all busy
+    public <T> T read(SqlWork<T> work) throws SQLException {
+        var handle = this.acquireReader();
+        try {
+            return work.run(handle);
+        } finally {
+            this.releaseReader(handle);
+        }
+    }
+
+    public void close() {
+        this.writeLock.lock();
+        try {
+            this.writer = this.discard(this.writer);
+        } finally {
+            this.writeLock.unlock();
+        }
+
+        Handle handle;
+        while ((handle = this.readers.poll()) != null) {
+            this.discard(handle);
+        }
+    }
+
+    /*
+     * a permit per reader that may be open. the holder of a permit takes an
+     * idle reader or opens one, so a reader dropped on error never leaves a
+     * waiter without a connection.
+     */
+    private Handle acquireReader() throws SQLException {
+        try {
+            this.readerPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted waiting for a reader", e);
+        }
+
+        var handle = this.readers.poll();
+        if (handle != null) {
+            return handle;
         }
+
+        try {
+            // readers need the file in wal mode already, the writer switches it on open
+            this.write((w) -> null);
+            return new Handle((SQLiteConnection) this.readerSource.getConnection());
+        } catch (SQLException | RuntimeException e) {
+            this.readerPermits.release();
+            throw e;
+        }
+    }
+
+    private void releaseReader(Handle handle) {
+        if (handle.isOpen()) {
+            this.readers.offer(handle);
+        } else {
+            this.discard(handle);
+        }
+        this.readerPermits.release();
     }
 
-    public void closeConnection() {
-        if (this.connection != null) {
+    private Handle discard(Handle handle) {
+        if (handle != null) {
             try {
-                this.connection.close();
+                handle.connection.close();
             } catch (Exception e) {
                 e.printStackTrace();
             }
-            this.connection = null;
+        }
+        return null;
+    }
+
+    @FunctionalInterface
+    public interface SqlWork<T> {
+        T run(Handle handle) throws SQLException;
+    }
+
+    /*
+     * a connection and its statement cache. only ever used by the thread
+     * holding it, so neither needs locking.
+     */
+    public static final class Handle {
+        private final SQLiteConnection connection;
+        private final HashMap<String, PreparedStatement> statements = new HashMap<>();
+
+        private Handle(SQLiteConnection connection) {
+            this.connection = connection;
+        }
+
+        public SQLiteConnection getConnection() {
+            return this.connection;
+        }
+
+        private boolean isOpen() {
+            try {
+                return !this.connection.isClosed();
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        // cached per connection, only for fixed sql
+        public PreparedStatement prepare(String sql) throws SQLException {
+            var statement = this.statements.get(sql);
+            if (statement == null || statement.isClosed()) {
+                statement = this.connection.prepareStatement(sql);
+                this.statements.put(sql, statement);
+            }
+            return statement;
         }
     }
 }
@@ -0,0 +1,325 @@
+package br.com.weather.weatherrest.database;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import br.com.weather.weatherrest.WeatherRestApplication;
+import br.com.weather.weatherrest.data.weather.HourlySeries;
+import br.com.weather.weatherrest.data.weather.HourlyVariable;
+import br.com.weather.weatherrest.data.weather.HourlyWeather;
+import br.com.weather.weatherrest.data.weather.WeatherCode;
+
+/*
+ * schema changes, applied in order on the writer connection. the database
+ * keeps the number of steps already applied in user_version, every step
+ * runs once in its own transaction.
+ */
+final class SchemaMigrations {
+    private static final List<SQLiteStorage.SqlWork<Void>> STEPS = List.of(
+            SchemaMigrations::nameIndex,
+            SchemaMigrations::forecastTables,
+            SchemaMigrations::hourlyBlobs,
+            SchemaMigrations::coordinatesIndex,
+            SchemaMigrations::locationStats);
+
+    private SchemaMigrations() {
+    }
+
+    static Void migrate(SQLiteStorage.Handle handle) throws SQLException {
+        var con = handle.getConnection();
+        int version;
+        try (var statement = con.createStatement();
+                var resultSet = statement.executeQuery("pragma user_version;")) {
+            version = resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+
+        for (int i = version; i < STEPS.size(); i++) {
+            con.setAutoCommit(false);
+            try {
+                STEPS.get(i).run(handle);
+                try (var statement = con.createStatement()) {
+                    // pragmas don't take parameters
+                    statement.execute("pragma user_version = " + (i + 1) + ";");
+                }
+                con.commit();
+                WeatherRestApplication.logger.info("database migrated to version " + (i + 1));
+            } catch (SQLException | RuntimeException e) {
+                // anything left open would be committed by setAutoCommit below
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        }
+        return null;
+    }
+
+    private static void execute(SQLiteStorage.Handle handle, String... sql) throws SQLException {
+        try (var statement = handle.getConnection().createStatement()) {
+            for (var s : sql) {
+                statement.execute(s);
+            }
+        }
+    }
+
+    /*
+     * 1: trigram full text index over normalized_name, rowid = location id,
+     * kept in sync with locations by triggers.
+     */
+    private static Void nameIndex(SQLiteStorage.Handle handle) throws SQLException {
+        execute(handle,
+                "create table if not exists locations(" +
+                        "id integer primary key," +
+                        "name text," +
+                        "normalized_name text," +
+                        "country text," +
+                        "country_code text," +
+                        "latitude real," +
+                        "longitude real," +
+                        "timezone text," +
+                        "last_updated integer," +
+                        "admin1 text," +
+                        "population integer," +
+                        "weather_data text) without rowid;",
+                "create virtual table if not exists locations_fts using fts5(normalized_name, tokenize='trigram');",
+                "create trigger if not exists locations_fts_insert after insert on locations begin " +
+                        "insert into locations_fts(rowid, normalized_name) values (new.id, new.normalized_name); end;",
+                "create trigger if not exists locations_fts_update after update of normalized_name on locations begin " +
+                        "update locations_fts set normalized_name = new.normalized_name where rowid = old.id; end;",
+                "create trigger if not exists locations_fts_delete after delete on locations begin " +
+                        "delete from locations_fts where rowid = old.id; end;",
+                "delete from locations_fts;",
+                "insert into locations_fts(rowid, normalized_name) select id, normalized_name from locations;");
+        return null;
+    }
+
+    /*
+     * 2: forecasts move out of the weather_data json into one table per
+     * part, keyed by location and timestamp. columns are named after the
+     * json keys, so the blobs are copied over key by key.
+     */
+    private static Void forecastTables(SQLiteStorage.Handle handle) throws SQLException {
+        var hourly = new StringBuilder();
+        var hourlyColumns = new ArrayList<String>();
+        for (var variable : HourlyVariable.all()) {
+            hourly.append(variable.getKey()).append(" real,");
+            hourlyColumns.add(variable.getKey());
+        }
+        hourlyColumns.add("weathercode");
+        hourlyColumns.add("is_day");
+
+        execute(handle,
+                "create table current_weather(" +
+                        "location_id integer primary key," +
+                        "time integer," +
+                        "temperature real," +
+                        "windspeed real," +
+                        "winddirection real," +
+                        "weathercode integer) without rowid;",
+                "create table daily_weather(" +
+                        "location_id integer," +
+                        "time integer," +
+                        "temperature_2m_max real," +
+                        "temperature_2m_min real," +
+                        "apparent_temperature_max real," +
+                        "apparent_temperature_min real," +
+                        "precipitation_sum real," +
+                        "rain_sum real," +
+                        "showers_sum real," +
+                        "snowfall_sum real," +
+                        "precipitation_hours real," +
+                        "windspeed_10m_max real," +
+                        "windgusts_10m_max real," +
+                        "winddirection_10m_dominant real," +
+                        "sunrise integer," +
+                        "sunset integer," +
+                        "weathercode integer," +
+                        "primary key(location_id, time)) without rowid;",
+                "create table hourly_weather(" +
+                        "location_id integer," +
+                        "time integer," +
+                        hourly +
+                        "weathercode integer," +
+                        "is_day integer," +
+                        "primary key(location_id, time)) without rowid;");
+
+        var con = handle.getConnection();
+        var current = List.of("time", "temperature", "windspeed", "winddirection", "weathercode");
+        var daily = List.of("time", "temperature_2m_max", "temperature_2m_min", "apparent_temperature_max",
+                "apparent_temperature_min", "precipitation_sum", "rain_sum", "showers_sum", "snowfall_sum",
+                "precipitation_hours", "windspeed_10m_max", "windgusts_10m_max", "winddirection_10m_dominant",
+                "sunrise", "sunset", "weathercode");
+        hourlyColumns.add(0, "time");
+
+        try (var currentInsert = con.prepareStatement(insert("current_weather", current));
+                var dailyInsert = con.prepareStatement(insert("daily_weather", daily));
+                var hourlyInsert = con.prepareStatement(insert("hourly_weather", hourlyColumns));
+                var select = con.createStatement();
+                var resultSet = select.executeQuery("select id, weather_data from locations " +
+                        "where weather_data is not null and weather_data <> '{}';")) {
+            var count = 0;
+            while (resultSet.next()) {
+                var id = resultSet.getInt(1);
+                var json = JsonParser.parseString(resultSet.getString(2)).getAsJsonObject();
+                if (!json.has("weather_data")) {
+                    continue;
+                }
+
+                var data = json.getAsJsonObject("weather_data");
+                if (data.has("current_weather")) {
+                    bind(currentInsert, id, current, data.getAsJsonObject("current_weather"));
+                    currentInsert.addBatch();
+                }
+
+                if (data.has("daily")) {
+                    for (var day : data.getAsJsonArray("daily")) {
+                        bind(dailyInsert, id, daily, day.getAsJsonObject());
+                        dailyInsert.addBatch();
+
+                        var hours = day.getAsJsonObject().getAsJsonArray("hourly");
+                        if (hours != null) {
+                            for (var hour : hours) {
+                                bind(hourlyInsert, id, hourlyColumns, hour.getAsJsonObject());
+                                hourlyInsert.addBatch();
+                            }
+                        }
+                    }
+                }
+
+                if (++count % 100 == 0) {
+                    currentInsert.executeBatch();
+                    dailyInsert.executeBatch();
+                    hourlyInsert.executeBatch();
+                }
+            }
+
+            currentInsert.executeBatch();
+            dailyInsert.executeBatch();
+            hourlyInsert.executeBatch();
+        }
+
+        execute(handle, "alter table locations drop column weather_data;");
+        return null;
+    }
+
+    /*
+     * 3: the hourly rows of each location collapse into one ForecastCodec
+     * blob, the time column is its first hour.
+     */
+    private static Void hourlyBlobs(SQLiteStorage.Handle handle) throws SQLException {
+        execute(handle, "create table hourly_data(" +
+                "location_id integer primary key," +
+                "time integer," +
+                "data blob);");
+
+        var variables = HourlyVariable.all();
+        var columns = new StringBuilder();
+        for (var variable : variables) {
+            columns.append(variable.getKey()).append(',');
+        }
+
+        var con = handle.getConnection();
+        try (var insert = con.prepareStatement("insert into hourly_data(location_id, time, data) values(?,?,?);");
+                var select = con.createStatement();
+                var resultSet = select.executeQuery("select location_id, time, " + columns +
+                        "weathercode, is_day from hourly_weather order by location_id, time;")) {
+            var hours = new ArrayList<HourlyWeather>();
+            var count = 0;
+            var more = resultSet.next();
+            while (more) {
+                var id = resultSet.getInt(1);
+                hours.clear();
+
+                // one series per row, they're only read back through the codec
+                do {
+                    var row = new HourlySeries(1);
+                    row.setTimestamp(0, resultSet.getLong(2));
+                    for (int i = 0; i < variables.length; i++) {
+                        row.set(variables[i], 0, resultSet.getDouble(i + 3));
+                    }
+                    row.setWeatherCode(0, WeatherCode.valueOf(resultSet.getInt(variables.length + 3)));
+                    row.setDay(0, resultSet.getInt(variables.length + 4) != 0);
+                    hours.add(row.getRow(0));
+                    more = resultSet.next();
+                } while (more && resultSet.getInt(1) == id);
+
+                insert.setInt(1, id);
+                insert.setLong(2, hours.get(0).getTimestamp());
+                insert.setBytes(3, ForecastCodec.encode(hours));
+                insert.addBatch();
+                if (++count % 100 == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+        }
+
+        execute(handle, "drop table hourly_weather;");
+        return null;
+    }
+
+    // 4: nearest lookups on locations that aren't loaded in memory
+    private static Void coordinatesIndex(SQLiteStorage.Handle handle) throws SQLException {
+        execute(handle, "create index if not exists locations_coordinates on locations(latitude, longitude);");
+        return null;
+    }
+
+    /*
+     * 5: access counters per location. hotness is the decayed hit count as
+     * of hotness_at, rank orders it over time (WeatherLocation.hotnessRank).
+     */
+    private static Void locationStats(SQLiteStorage.Handle handle) throws SQLException {
+        execute(handle,
+                "create table location_stats(" +
+                        "location_id integer primary key," +
+                        "hits integer," +
+                        "hotness real," +
+                        "hotness_at integer," +
+                        "last_accessed integer," +
+                        "rank real);",
+                "create index location_stats_rank on location_stats(rank);");
+        return null;
+    }
+
+    private static String insert(String table, List<String> columns) {
+        var sql = new StringBuilder("insert or replace into ").append(table).append("(location_id");
+        var values = new StringBuilder("?");
+        for (var column : columns) {
+            sql.append(',').append(column);
+            values.append(",?");
+        }
+        return sql.append(") values(").append(values).append(");").toString();
+    }
+
+    private static void bind(PreparedStatement statement, int id, List<String> columns, JsonObject object)
+            throws SQLException {
+        statement.setInt(1, id);
+        for (int i = 0; i < columns.size(); i++) {
+            var column = columns.get(i);
+            var value = object.get(column);
+            if (value == null || value.isJsonNull()) {
+                statement.setNull(i + 2, Types.NULL);
+            } else if (column.equals("weathercode")) {
+                statement.setInt(i + 2, code(value));
+            } else if (column.equals("is_day")) {
+                statement.setInt(i + 2, HourlySeries.asBoolean(value) ? 1 : 0);
+            } else if (column.equals("time") || column.equals("sunrise") || column.equals("sunset")) {
+                statement.setLong(i + 2, value.getAsLong());
+            } else {
+                statement.setDouble(i + 2, value.getAsDouble());
+            }
+        }
+    }
+
+    // stored json has the code as an object with its description
+    private static int code(JsonElement element) {
+        return element.isJsonObject() ? element.getAsJsonObject().get("code").getAsInt() : element.getAsInt();
+    }
+}
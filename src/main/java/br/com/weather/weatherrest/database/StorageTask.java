@@ -10,6 +10,8 @@ public class StorageTask extends Thread {
             try {
                 sleep(TASK_SECONDS*1000);
                 WeatherManager.storeLocations();
+                WeatherManager.storeStats();
+                WeatherManager.storeSnapshot();
                 WeatherManager.storePatterns();
                 WeatherManager.clearLocations();
             } catch (Exception e) {
@@ -1,262 +1,590 @@
 package br.com.weather.weatherrest.database;
 
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import java.util.zip.DataFormatException;
 
+import br.com.weather.weatherrest.data.weather.CurrentWeather;
+import br.com.weather.weatherrest.data.weather.DailyWeather;
+import br.com.weather.weatherrest.data.weather.HourlySeries;
+import br.com.weather.weatherrest.data.weather.HourlyWeather;
 import br.com.weather.weatherrest.data.weather.MeteoAPI;
+import br.com.weather.weatherrest.data.weather.SpatialIndex;
+import br.com.weather.weatherrest.data.weather.WeatherCode;
 import br.com.weather.weatherrest.data.weather.WeatherLocation;
 
 public class WeatherStorage {
+    private static final String LOCATION_COLUMNS = "select " +
+            "id," +
+            "name," +
+            "country," +
+            "country_code," +
+            "latitude," +
+            "longitude," +
+            "timezone," +
+            "admin1," +
+            "population," +
+            "last_updated," +
+            "hits," +
+            "hotness," +
+            "hotness_at," +
+            "last_accessed " +
+            "from locations left join location_stats on location_id = id";
+
+    private static final String[] DAILY_COLUMNS = { "temperature_2m_max", "temperature_2m_min",
+            "apparent_temperature_max", "apparent_temperature_min", "precipitation_sum", "rain_sum", "showers_sum",
+            "snowfall_sum", "precipitation_hours", "windspeed_10m_max", "windgusts_10m_max",
+            "winddirection_10m_dominant", "sunrise", "sunset", "weathercode" };
+
+    private static final String UPSERT_LOCATION = "insert into locations(" +
+            "id," +
+            "name," +
+            "normalized_name," +
+            "country," +
+            "country_code," +
+            "latitude," +
+            "longitude," +
+            "timezone," +
+            "admin1," +
+            "last_updated," +
+            "population) " +
+            "values(?,?,?,?,?,?,?,?,?,?,?) " +
+            "on conflict(id) " +
+            "do update " +
+            // a location is stored before its first forecast, with "none" until meteo tells the timezone
+            "set last_updated = excluded.last_updated, " +
+            "timezone = coalesce(nullif(excluded.timezone, 'none'), timezone), " +
+            "admin1 = coalesce(nullif(excluded.admin1, 'none'), admin1), " +
+            "population = coalesce(nullif(excluded.population, 0), population);";
+    private static final String UPSERT_STATS = "insert or replace into location_stats(" +
+            "location_id," +
+            "hits," +
+            "hotness," +
+            "hotness_at," +
+            "last_accessed," +
+            "rank) " +
+            "values(?,?,?,?,?,?);";
+    private static final String UPSERT_CURRENT = upsert("current_weather", "location_id",
+            "time", "temperature", "windspeed", "winddirection", "weathercode");
+    private static final String UPSERT_DAILY = upsert("daily_weather", "location_id, time",
+            concat("time", DAILY_COLUMNS));
+    // the whole hourly forecast of a location as one ForecastCodec blob
+    private static final String UPSERT_HOURLY = upsert("hourly_data", "location_id", "time", "data");
+
     private final SQLiteStorage storage;
-    private PreparedStatement[] statements; // 0 = insert, 1 = query, 2 = queryData
 
     public WeatherStorage(String filePath) {
         this.storage = new SQLiteStorage(filePath);
-        this.statements = new PreparedStatement[3];
+        try {
+            this.storage.write(SchemaMigrations::migrate);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 
     public Optional<List<WeatherLocation>> queryLocations() {
         try {
-            var con = this.storage.getConnection();
-            var query = "select " +
-                    "id," +
-                    "name," +
-                    "country," +
-                    "country_code," +
-                    "latitude," +
-                    "longitude," +
-                    "timezone," +
-                    "admin1," +
-                    "population," +
-                    "last_updated " +
-                    "from locations;";
-
-            var statement = con.prepareStatement(query);
-
-            var resultSet = statement.executeQuery();
-            List<WeatherLocation> locations = new ArrayList<>();
-            while (resultSet.next()) {
-                var location = WeatherLocation.getBuilder()
-                        .id(resultSet.getInt(1))
-                        .name(resultSet.getString(2))
-                        .country(resultSet.getString(3))
-                        .countryCode(resultSet.getString(4))
-                        .latitude(resultSet.getDouble(5))
-                        .longitude(resultSet.getDouble(6))
-                        .timezone(resultSet.getString(7))
-                        .admin1(resultSet.getString(8))
-                        .population(resultSet.getInt(9))
-                        .lastUpdated(resultSet.getLong(10))
-                        .build();
-                locations.add(location);
-            }
+            return this.storage.read((handle) -> {
+                try (var resultSet = handle.prepare(LOCATION_COLUMNS + ";").executeQuery()) {
+                    List<WeatherLocation> locations = new ArrayList<>();
+                    while (resultSet.next()) {
+                        locations.add(readLocation(resultSet));
+                    }
+                    return Optional.of(locations).filter((l) -> !l.isEmpty());
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return Optional.empty();
+    }
 
-            if (!locations.isEmpty()) {
-                return Optional.of(locations);
-            }
+    // every stored id, ascending
+    public Optional<int[]> queryLocationIds() {
+        try {
+            return this.storage.read((handle) -> {
+                var count = handle.prepare("select count(*) from locations;");
+                int size;
+                try (var resultSet = count.executeQuery()) {
+                    size = resultSet.next() ? resultSet.getInt(1) : 0;
+                }
 
-            resultSet.close();
+                // sized by the count, ids stored in between are picked up when they're registered
+                var ids = new int[size];
+                var i = 0;
+                try (var resultSet = handle.prepare("select id from locations order by id;").executeQuery()) {
+                    while (i < size && resultSet.next()) {
+                        ids[i++] = resultSet.getInt(1);
+                    }
+                }
+                return Optional.of(i == size ? ids : Arrays.copyOf(ids, i));
+            });
         } catch (Exception e) {
             e.printStackTrace();
         }
         return Optional.empty();
     }
 
-    public void store(Collection<WeatherLocation> locations) {
+    // the hottest locations first, as of their last flush, up to limit
+    public Optional<List<WeatherLocation>> queryHottest(int limit) {
+        try {
+            return this.storage.read((handle) -> {
+                var statement = handle.prepare(LOCATION_COLUMNS + " where rank is not null order by rank desc limit ?;");
+                statement.setInt(1, limit);
+
+                try (var resultSet = statement.executeQuery()) {
+                    List<WeatherLocation> locations = new ArrayList<>();
+                    while (resultSet.next()) {
+                        locations.add(readLocation(resultSet));
+                    }
+                    return Optional.of(locations).filter((l) -> !l.isEmpty());
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return Optional.empty();
+    }
+
+    // access stats of the locations, decayed to now. false if it rolled back
+    public boolean storeStats(Collection<WeatherLocation> locations) {
         if (locations.isEmpty())
-            return;
+            return true;
 
+        var now = System.currentTimeMillis();
         try {
-            var con = this.storage.getConnection();
-            con.setAutoCommit(false);
-
-            if (this.statements[0] == null || this.statements[0].isClosed()) {
-                var query = "insert into locations(" +
-                        "id," +
-                        "name," +
-                        "normalized_name," +
-                        "country," +
-                        "country_code," +
-                        "latitude," +
-                        "longitude," +
-                        "timezone," +
-                        "admin1," +
-                        "last_updated," +
-                        "population," +
-                        "weather_data) " +
-                        "values(?,?,?,?,?,?,?,?,?,?,?,?) " +
-                        "on conflict(id) " +
-                        "do update " +
-                        "set last_updated = excluded.last_updated, " +
-                        "weather_data = excluded.weather_data;";
-
-                this.statements[0] = con.prepareStatement(query);
-            }
-            var locArray = new ArrayList<WeatherLocation>(locations);
-
-            var statement = this.statements[0];
-            for (int i = 0; i < locArray.size(); i++) {
-                var location = locArray.get(i);
-                if (!location.canStore())
-                    continue;
-
-                var json = location.toJsonObject(true);
-
-                statement.setInt(1, location.getId());
-                statement.setString(2, location.getName());
-                statement.setString(3, location.getNormalizedName());
-                statement.setString(4, location.getCountry());
-                statement.setString(5, location.getCountryCode());
-                statement.setDouble(6, location.getLatitude());
-                statement.setDouble(7, location.getLongitude());
-                statement.setString(8, location.getTimeZone().orElse("none"));
-                statement.setString(9, location.getAdmin1().orElse("none"));
-                statement.setLong(10, location.getLastUpdated());
-                statement.setInt(11, location.getPopulation().orElse(0));
-                statement.setString(12, json.has("weather_data") ? json.toString() : "{}");
-                statement.addBatch();
-
-                if (i % 500 == 0) {
+            this.storage.write((handle) -> {
+                var con = handle.getConnection();
+                var statement = handle.prepare(UPSERT_STATS);
+
+                con.setAutoCommit(false);
+                try {
+                    for (var location : locations) {
+                        var hotness = location.getHotness(now);
+                        statement.setInt(1, location.getId());
+                        statement.setLong(2, location.getHits());
+                        statement.setDouble(3, hotness);
+                        statement.setLong(4, now);
+                        statement.setLong(5, location.getLastAcessed());
+                        statement.setDouble(6, WeatherLocation.hotnessRank(hotness, now));
+                        statement.addBatch();
+                    }
                     statement.executeBatch();
+                    con.commit();
+                } catch (SQLException | RuntimeException e) {
+                    con.rollback();
+                    throw e;
+                } finally {
+                    con.setAutoCommit(true);
                 }
-            }
+                return null;
+            });
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
 
-            statement.executeBatch();
-            con.commit();
+    /*
+     * the stored location closest to the point within radiusKm. the box
+     * around it goes through the coordinates index, the exact distance is
+     * checked here.
+     */
+    public Optional<WeatherLocation> queryNearest(double latitude, double longitude, double radiusKm) {
+        var latSpan = radiusKm / SpatialIndex.KM_PER_DEGREE;
+        var cos = Math.cos(Math.toRadians(Math.min(90, Math.abs(latitude) + latSpan)));
+        var longSpan = cos < 1e-6 ? 360 : latSpan / cos;
+        // a box crossing the antimeridian just takes every longitude
+        var wraps = longitude - longSpan < -180 || longitude + longSpan > 180;
+
+        try {
+            return this.storage.read((handle) -> {
+                var statement = handle.prepare(LOCATION_COLUMNS +
+                        " where latitude between ? and ? and longitude between ? and ?;");
+                statement.setDouble(1, latitude - latSpan);
+                statement.setDouble(2, latitude + latSpan);
+                statement.setDouble(3, wraps ? -180 : longitude - longSpan);
+                statement.setDouble(4, wraps ? 180 : longitude + longSpan);
+
+                WeatherLocation best = null;
+                var bestDistance = radiusKm;
+                try (var resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        var distance = SpatialIndex.distanceKm(latitude, longitude,
+                                resultSet.getDouble(5), resultSet.getDouble(6));
+                        if (distance <= bestDistance) {
+                            best = readLocation(resultSet);
+                            bestDistance = distance;
+                        }
+                    }
+                }
+                return Optional.ofNullable(best);
+            });
         } catch (Exception e) {
             e.printStackTrace();
         }
+        return Optional.empty();
+    }
+
+    /*
+     * upserts the locations and their forecasts in one transaction. forecast
+     * rows are keyed by timestamp, an unchanged row isn't rewritten and the
+     * days that fell out of the forecast are deleted. false if it rolled back.
+     */
+    public boolean store(Collection<WeatherLocation> locations) {
+        if (locations.isEmpty())
+            return true;
+
+        try {
+            this.storage.write((handle) -> {
+                var con = handle.getConnection();
+                var locationStatement = handle.prepare(UPSERT_LOCATION);
+                var currentStatement = handle.prepare(UPSERT_CURRENT);
+                var dailyStatement = handle.prepare(UPSERT_DAILY);
+                var hourlyStatement = handle.prepare(UPSERT_HOURLY);
+                var dailyCleanup = handle.prepare("delete from daily_weather where location_id=? and time<?;");
+
+                con.setAutoCommit(false);
+                try {
+                    var count = 0;
+                    for (var location : locations) {
+                        bindLocation(locationStatement, location);
+                        locationStatement.addBatch();
+
+                        var current = location.getCurrentWeather();
+                        if (current.isPresent()) {
+                            bindCurrent(currentStatement, location.getId(), current.get());
+                            currentStatement.addBatch();
+                        }
+
+                        var daily = location.getDailyWeather();
+                        if (daily.isPresent() && !daily.get().isEmpty()) {
+                            var firstDay = daily.get().get(0).getTimestamp();
+                            dailyCleanup.setInt(1, location.getId());
+                            dailyCleanup.setLong(2, firstDay);
+                            dailyCleanup.addBatch();
+
+                            var hours = new ArrayList<HourlyWeather>();
+                            for (var day : daily.get()) {
+                                bindDaily(dailyStatement, location.getId(), day);
+                                dailyStatement.addBatch();
+                                day.getHourlyWeather().ifPresent(hours::addAll);
+                            }
+
+                            if (!hours.isEmpty()) {
+                                hourlyStatement.setInt(1, location.getId());
+                                hourlyStatement.setLong(2, hours.get(0).getTimestamp());
+                                hourlyStatement.setBytes(3, ForecastCodec.encode(hours));
+                                hourlyStatement.addBatch();
+                            }
+                        }
+
+                        if (++count % 100 == 0) {
+                            executeBatches(locationStatement, dailyCleanup,
+                                    currentStatement, dailyStatement, hourlyStatement);
+                        }
+                    }
+
+                    executeBatches(locationStatement, dailyCleanup,
+                            currentStatement, dailyStatement, hourlyStatement);
+                    con.commit();
+                } catch (SQLException | RuntimeException e) {
+                    con.rollback();
+                    throw e;
+                } finally {
+                    con.setAutoCommit(true);
+                }
+                return null;
+            });
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return false;
     }
 
     public Optional<WeatherLocation> queryLocation(int id) {
         if (id < 0)
-            Optional.empty();
+            return Optional.empty();
 
         try {
-            var con = this.storage.getConnection();
-            if (this.statements[1] == null || this.statements[1].isClosed()) {
-                var query = "select " +
-                        "id," +
-                        "name," +
-                        "country," +
-                        "country_code," +
-                        "latitude," +
-                        "longitude," +
-                        "timezone," +
-                        "admin1," +
-                        "population," +
-                        "last_updated " +
-                        "from locations where id=?;";
-
-                this.statements[1] = con.prepareStatement(query);
-            }
-
-            var statement = this.statements[1];
-            statement.setInt(1, id);
-
-            var resultSet = statement.executeQuery();
-            if (resultSet.next()) {
-                var location = WeatherLocation.getBuilder()
-                        .id(resultSet.getInt(1))
-                        .name(resultSet.getString(2))
-                        .country(resultSet.getString(3))
-                        .countryCode(resultSet.getString(4))
-                        .latitude(resultSet.getDouble(5))
-                        .longitude(resultSet.getDouble(6))
-                        .timezone(resultSet.getString(7))
-                        .admin1(resultSet.getString(8))
-                        .population(resultSet.getInt(9))
-                        .lastUpdated(resultSet.getLong(10))
-                        .build();
-
-                return Optional.of(location);
+            return this.storage.read((handle) -> {
+                var statement = handle.prepare(LOCATION_COLUMNS + " where id=?;");
+                statement.setInt(1, id);
+
+                try (var resultSet = statement.executeQuery()) {
+                    if (resultSet.next()) {
+                        return Optional.of(readLocation(resultSet));
+                    }
+                    return Optional.<WeatherLocation>empty();
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return Optional.empty();
+    }
 
-            }
+    /*
+     * up to limit names containing str. goes through the trigram index, which
+     * only helps from 3 chars on, shorter ones scan it until the limit is reached.
+     */
+    public Optional<List<WeatherLocation>> queryLocation(String str, int limit) {
+        // like wildcards in the name itself would widen the match, no place name has them
+        var normalized = MeteoAPI.normalize(str).replace("%", "").replace("_", "");
+        if (normalized.isEmpty())
+            return Optional.empty();
 
-            resultSet.close();
+        try {
+            return this.storage.read((handle) -> {
+                var statement = handle.prepare(LOCATION_COLUMNS + " where id in " +
+                        "(select rowid from locations_fts where normalized_name like ? limit ?);");
+                statement.setString(1, "%" + normalized + "%");
+                statement.setInt(2, limit);
+
+                try (var resultSet = statement.executeQuery()) {
+                    List<WeatherLocation> list = new ArrayList<>();
+                    while (resultSet.next()) {
+                        list.add(readLocation(resultSet));
+                    }
+                    return Optional.of(list).filter((l) -> !l.isEmpty());
+                }
+            });
         } catch (Exception e) {
             e.printStackTrace();
         }
         return Optional.empty();
     }
 
-    public Optional<List<WeatherLocation>> queryLocation(String str) {
-        var normalized = MeteoAPI.normalize(str);
+    public Optional<CurrentWeather> queryCurrentWeather(int id) {
+        try {
+            return this.storage.read((handle) -> {
+                var statement = handle.prepare("select temperature, windspeed, winddirection, weathercode, time " +
+                        "from current_weather where location_id=?;");
+                statement.setInt(1, id);
+
+                try (var resultSet = statement.executeQuery()) {
+                    if (resultSet.next()) {
+                        return Optional.of(new CurrentWeather(resultSet.getDouble(1), resultSet.getDouble(2),
+                                resultSet.getDouble(3), WeatherCode.valueOf(resultSet.getInt(4)), resultSet.getLong(5)));
+                    }
+                    return Optional.<CurrentWeather>empty();
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return Optional.empty();
+    }
 
+    // the stored days with their hours
+    public Optional<List<DailyWeather>> queryDailyWeather(int id) {
         try {
-            var con = this.storage.getConnection();
-            var query = "select " +
-                    "id," +
-                    "name," +
-                    "country," +
-                    "country_code," +
-                    "latitude," +
-                    "longitude," +
-                    "timezone," +
-                    "last_updated," +
-                    "admin1," +
-                    "population " +
-                    "from locations " +
-                    "where normalized_name like '%" + normalized + "%';";
-
-            var statement = con.prepareStatement(query);
-
-            var resultSet = statement.executeQuery();
-            List<WeatherLocation> list = new ArrayList<>();
-            while (resultSet.next()) {
-                var location = WeatherLocation.getBuilder()
-                        .id(resultSet.getInt(1))
-                        .name(resultSet.getString(2))
-                        .country(resultSet.getString(3))
-                        .countryCode(resultSet.getString(4))
-                        .latitude(resultSet.getDouble(5))
-                        .longitude(resultSet.getDouble(6))
-                        .timezone(resultSet.getString(7))
-                        .lastUpdated(resultSet.getLong(8))
-                        .admin1(resultSet.getString(9))
-                        .population(resultSet.getInt(10))
-                        .build();
-
-                list.add(location);
-            }
+            return this.storage.read((handle) -> {
+                var statement = handle.prepare("select time, " + String.join(", ", DAILY_COLUMNS) +
+                        " from daily_weather where location_id=? order by time;");
+                statement.setInt(1, id);
+
+                var days = new ArrayList<DailyWeather>();
+                try (var resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        days.add(readDaily(resultSet));
+                    }
+                }
+                if (days.isEmpty()) {
+                    return Optional.<List<DailyWeather>>empty();
+                }
 
-            resultSet.close();
-            statement.close();
-            return Optional.of(list).filter((l) -> !l.isEmpty());
+                this.queryHourly(handle, id, days.get(0).getTimestamp(), Long.MAX_VALUE)
+                        .ifPresent((hours) -> attachHours(days, hours));
+                return Optional.<List<DailyWeather>>of(days);
+            });
         } catch (Exception e) {
             e.printStackTrace();
         }
         return Optional.empty();
     }
 
-    public Optional<JsonObject> queryWeatherData(WeatherLocation location) {
-        try {
-            var con = this.storage.getConnection();
-            if (this.statements[2] == null || this.statements[2].isClosed()) {
-                this.statements[2] = con.prepareStatement("select weather_data from locations where id=?;");
+    // hours in [from, to), unix seconds
+    private Optional<HourlySeries> queryHourly(SQLiteStorage.Handle handle, int id, long from, long to)
+            throws SQLException {
+        var statement = handle.prepare("select data from hourly_data where location_id=?;");
+        statement.setInt(1, id);
+
+        byte[] data;
+        try (var resultSet = statement.executeQuery()) {
+            if (!resultSet.next()) {
+                return Optional.empty();
             }
+            data = resultSet.getBytes(1);
+        }
+
+        HourlySeries series;
+        try {
+            series = ForecastCodec.decode(data);
+        } catch (DataFormatException e) {
+            throw new SQLException("bad hourly data for " + id, e);
+        }
 
-            var statement = this.statements[2];
-            statement.setInt(1, location.getId());
+        // a week of hours at most, decoding it all and cutting the slice is cheap
+        var first = 0;
+        while (first < series.size() && series.getTimestamp(first) < from) {
+            first++;
+        }
+        var last = first;
+        while (last < series.size() && series.getTimestamp(last) < to) {
+            last++;
+        }
+        if (first == last) {
+            return Optional.empty();
+        }
+        return Optional.of(first == 0 && last == series.size() ? series : series.slice(first, last));
+    }
 
-            var resultSet = statement.executeQuery();
-            if (resultSet.next()) {
-                var data = JsonParser.parseString(resultSet.getString(1)).getAsJsonObject();
-                if (data.size() == 0) {
-                    return Optional.empty();
-                }
-                return Optional.of(data);
+    // hours come in one series, a day gets the rows from its own timestamp up to the next day's
+    static void attachHours(List<DailyWeather> days, HourlySeries hours) {
+        var row = 0;
+        for (int i = 0; i < days.size(); i++) {
+            var end = i + 1 < days.size() ? days.get(i + 1).getTimestamp() : Long.MAX_VALUE;
+            var first = row;
+            while (row < hours.size() && hours.getTimestamp(row) < end) {
+                row++;
             }
+            if (row > first) {
+                days.get(i).setHourlyWeather(Optional.of(hours.view(first, row)));
+            }
+        }
+    }
 
-            resultSet.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+    // rows selected with LOCATION_COLUMNS
+    private static WeatherLocation readLocation(ResultSet resultSet) throws SQLException {
+        var location = WeatherLocation.getBuilder()
+                .id(resultSet.getInt(1))
+                .name(resultSet.getString(2))
+                .country(resultSet.getString(3))
+                .countryCode(resultSet.getString(4))
+                .latitude(resultSet.getDouble(5))
+                .longitude(resultSet.getDouble(6))
+                .timezone(resultSet.getString(7))
+                .admin1(resultSet.getString(8))
+                .population(resultSet.getInt(9))
+                .lastUpdated(resultSet.getLong(10))
+                .build();
+
+        // no stats row for locations never asked for
+        var hits = resultSet.getLong(11);
+        if (!resultSet.wasNull()) {
+            location.restoreAccess(hits, resultSet.getDouble(12), resultSet.getLong(13), resultSet.getLong(14));
         }
-        return Optional.empty();
+        return location;
+    }
+
+    // rows selected with "time" + DAILY_COLUMNS
+    private static DailyWeather readDaily(ResultSet resultSet) throws SQLException {
+        return DailyWeather.getBuilder()
+                .timestamp(resultSet.getLong(1))
+                .maxTemperature(resultSet.getDouble(2))
+                .minTemperature(resultSet.getDouble(3))
+                .appMaxTemperature(resultSet.getDouble(4))
+                .appMinTemperature(resultSet.getDouble(5))
+                .precipitationSum(resultSet.getDouble(6))
+                .rainSum(resultSet.getDouble(7))
+                .showersSum(resultSet.getDouble(8))
+                .snowfallSum(resultSet.getDouble(9))
+                .precipitationHours(resultSet.getDouble(10))
+                .windSpeed(resultSet.getDouble(11))
+                .windGust(resultSet.getDouble(12))
+                .windDirection(resultSet.getDouble(13))
+                .sunrise(resultSet.getLong(14))
+                .sunset(resultSet.getLong(15))
+                .weatherCode(WeatherCode.valueOf(resultSet.getInt(16)))
+                .build();
+    }
+
+    private static void bindLocation(PreparedStatement statement, WeatherLocation location) throws SQLException {
+        statement.setInt(1, location.getId());
+        statement.setString(2, location.getName());
+        statement.setString(3, location.getNormalizedName());
+        statement.setString(4, location.getCountry());
+        statement.setString(5, location.getCountryCode());
+        statement.setDouble(6, location.getLatitude());
+        statement.setDouble(7, location.getLongitude());
+        statement.setString(8, location.getTimeZone().orElse("none"));
+        statement.setString(9, location.getAdmin1().orElse("none"));
+        statement.setLong(10, location.getLastUpdated());
+        statement.setInt(11, location.getPopulation().orElse(0));
+    }
+
+    private static void bindCurrent(PreparedStatement statement, int id, CurrentWeather current) throws SQLException {
+        statement.setInt(1, id);
+        statement.setLong(2, current.getTimestamp());
+        statement.setDouble(3, current.getTemperature());
+        statement.setDouble(4, current.getWindSpeed());
+        statement.setDouble(5, current.getWindDirection());
+        statement.setInt(6, current.getCode().getCode());
+    }
+
+    // same order as DAILY_COLUMNS
+    private static void bindDaily(PreparedStatement statement, int id, DailyWeather day) throws SQLException {
+        statement.setInt(1, id);
+        statement.setLong(2, day.getTimestamp());
+        statement.setDouble(3, day.getMaxTemp());
+        statement.setDouble(4, day.getMinTemp());
+        statement.setDouble(5, day.getAppMaxTemp());
+        statement.setDouble(6, day.getAppMinTemp());
+        statement.setDouble(7, day.getPrecipitationSum());
+        statement.setDouble(8, day.getRainSum());
+        statement.setDouble(9, day.getShowersSum());
+        statement.setDouble(10, day.getSnowfallSum());
+        statement.setDouble(11, day.getPrecipitationHours());
+        statement.setDouble(12, day.getWindSpeed());
+        statement.setDouble(13, day.getWindGust());
+        statement.setDouble(14, day.getWindDirection());
+        statement.setLong(15, day.getSunrise());
+        statement.setLong(16, day.getSunset());
+        statement.setInt(17, day.getWeatherCode().getCode());
+    }
+
+    private static void executeBatches(PreparedStatement... statements) throws SQLException {
+        for (var statement : statements) {
+            statement.executeBatch();
+        }
+    }
+
+    private static String[] concat(String first, String[] rest) {
+        var all = new String[rest.length + 1];
+        all[0] = first;
+        System.arraycopy(rest, 0, all, 1, rest.length);
+        return all;
+    }
+
+    /*
+     * insert or update by key, the update is skipped when no column changed
+     * so unchanged rows aren't rewritten.
+     */
+    private static String upsert(String table, String key, String... columns) {
+        var names = String.join(",", columns);
+        var excluded = new StringBuilder();
+        var set = new StringBuilder();
+        for (var column : columns) {
+            if (excluded.length() > 0) {
+                excluded.append(',');
+                set.append(',');
+            }
+            excluded.append("excluded.").append(column);
+            set.append(column).append("=excluded.").append(column);
+        }
+
+        return "insert into " + table + "(location_id," + names + ") " +
+                "values(?" + ",?".repeat(columns.length) + ") " +
+                "on conflict(" + key + ") do update set " + set +
+                " where (" + names + ") is not (" + excluded + ");";
     }
 }
@@ -0,0 +1,277 @@
+package br.com.weather.weatherrest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * runs the app twice in its own jvm, once on platform threads and once on
+ * virtual ones, against a local meteo that takes UPSTREAM_DELAY_MS per
+ * answer. every location is opened once so each request goes upstream.
+ * a new jvm each time since VirtualThreads is decided once per process,
+ * and a temp working dir so the db and snapshot are thrown away after.
+ *
+ * the handlers themselves never block, /location waits on a future. what
+ * blocks is reading the forecast: ForecastReader pulls the body from an
+ * InputStream on the body executor, so the fake meteo sends half of the
+ * body and holds the rest back for half the delay. with virtual threads
+ * every one of those reads parks a virtual thread, tomcat and the http
+ * client run on them too; a pinned carrier or a pool sized too small
+ * along that path shows up as virtual threads falling behind, so parity
+ * is the expected outcome.
+ *
+ *   ./gradlew loadTest -Dweather.load.locations=500
+ */
+@Tag("load")
+class VirtualThreadsLoadTest {
+    private static final int LOCATIONS = Integer.getInteger("weather.load.locations", 200);
+    private static final int UPSTREAM_DELAY_MS = Integer.getInteger("weather.load.upstreamDelay", 300);
+    private static final int TOMCAT_THREADS = Integer.getInteger("weather.load.tomcatThreads", 16);
+    private static final Duration STARTUP_TIMEOUT = Duration.ofSeconds(60);
+
+    private static final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(2))
+            .build();
+
+    private static HttpServer upstream;
+    private static ExecutorService upstreamExecutor;
+    private static byte[] forecast;
+
+    @BeforeAll
+    static void startUpstream() throws IOException {
+        try (var in = VirtualThreadsLoadTest.class.getResourceAsStream("/forecast-7d.json")) {
+            forecast = in.readAllBytes();
+        }
+
+        // a thread per exchange, the delay has to overlap like a real slow upstream
+        upstreamExecutor = Executors.newCachedThreadPool();
+        upstream = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        upstream.createContext("/v1/search", VirtualThreadsLoadTest::search);
+        upstream.createContext("/v1/forecast", VirtualThreadsLoadTest::forecast);
+        upstream.setExecutor(upstreamExecutor);
+        upstream.start();
+    }
+
+    @AfterAll
+    static void stopUpstream() {
+        upstream.stop(0);
+        upstreamExecutor.shutdownNow();
+    }
+
+    @Test
+    void virtualThreadsKeepUpWithPlatformThreads(@TempDir Path platformDir, @TempDir Path virtualDir)
+            throws Exception {
+        assumeTrue(Runtime.version().feature() >= 21, "virtual threads need JDK 21+");
+
+        var platform = run(false, platformDir);
+        var virtual = run(true, virtualDir);
+        System.out.println("platform: " + platform);
+        System.out.println("virtual:  " + virtual);
+
+        assertEquals(LOCATIONS, platform.ok, "platform threads: " + platform);
+        assertEquals(LOCATIONS, virtual.ok, "virtual threads: " + virtual);
+        // timings are noisy on shared machines, this only catches virtual threads being clearly worse
+        assertTrue(virtual.elapsedMs <= platform.elapsedMs * 2 + UPSTREAM_DELAY_MS,
+                "virtual " + virtual + " vs platform " + platform);
+    }
+
+    private static Result run(boolean virtual, Path dir) throws Exception {
+        var port = freePort();
+        var base = "http://127.0.0.1:" + upstream.getAddress().getPort();
+        var process = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Dweather.virtualThreads=" + virtual,
+                "-Dweather.meteo.geocodingUrl=" + base + "/v1/search",
+                "-Dweather.meteo.forecastUrl=" + base + "/v1/forecast",
+                // one upstream call per location, and no cap below the number of locations
+                "-Dweather.meteo.batchWindowMs=0",
+                "-Dweather.http.maxPerHost=" + LOCATIONS,
+                "-Dweather.refresh.enabled=false",
+                "-Dweather.snapshot.enabled=false",
+                "-Dserver.port=" + port,
+                "-Dserver.tomcat.threads.max=" + TOMCAT_THREADS,
+                "-cp", System.getProperty("java.class.path"),
+                WeatherRestApplication.class.getName())
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("app.log").toFile())
+                .start();
+
+        try {
+            var app = "http://127.0.0.1:" + port;
+            awaitSearch(process, app, dir);
+            return load(app);
+        } finally {
+            process.destroy();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    // the search also registers the fake locations, so /location knows them afterwards
+    private static void awaitSearch(Process process, String app, Path dir) throws Exception {
+        var deadline = System.nanoTime() + STARTUP_TIMEOUT.toNanos();
+        var request = HttpRequest.newBuilder(URI.create(app + "/search?name=load")).GET().build();
+        while (System.nanoTime() < deadline) {
+            if (!process.isAlive()) {
+                fail("app exited:\n" + Files.readString(dir.resolve("app.log")));
+            }
+            try {
+                if (client.send(request, BodyHandlers.discarding()).statusCode() == 302) {
+                    return;
+                }
+            } catch (IOException e) {
+                // not listening yet
+            }
+            Thread.sleep(250);
+        }
+        fail("app didn't start in " + STARTUP_TIMEOUT + ":\n" + Files.readString(dir.resolve("app.log")));
+    }
+
+    private static Result load(String app) {
+        var latencies = new long[LOCATIONS];
+        var futures = new ArrayList<CompletableFuture<Integer>>(LOCATIONS);
+        var start = System.nanoTime();
+        for (int i = 0; i < LOCATIONS; i++) {
+            var index = i;
+            var request = HttpRequest.newBuilder(URI.create(app + "/location?id=" + (i + 1)))
+                    .timeout(Duration.ofSeconds(30))
+                    .GET()
+                    .build();
+            var sent = System.nanoTime();
+            futures.add(client.sendAsync(request, BodyHandlers.ofByteArray())
+                    .handle((response, e) -> {
+                        latencies[index] = System.nanoTime() - sent;
+                        return e == null && response.statusCode() == 302 ? 1 : 0;
+                    }));
+        }
+
+        var ok = 0;
+        for (var future : futures) {
+            ok += future.join();
+        }
+        var elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        return new Result(ok, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                TimeUnit.NANOSECONDS.toMillis(latencies[latencies.length / 2]),
+                TimeUnit.NANOSECONDS.toMillis(latencies[(int) (latencies.length * 0.99)]));
+    }
+
+    private static void search(HttpExchange exchange) throws IOException {
+        var body = new StringBuilder("{\"results\":[");
+        for (int i = 1; i <= LOCATIONS; i++) {
+            if (i > 1) {
+                body.append(',');
+            }
+            // spread out so no two share a coordinate pair
+            body.append("{\"id\":").append(i)
+                    .append(",\"name\":\"Load ").append(i).append('"')
+                    .append(",\"latitude\":").append(-23.5 + i * 0.01)
+                    .append(",\"longitude\":").append(-46.6 + i * 0.01)
+                    .append(",\"country\":\"Brazil\",\"country_code\":\"BR\"")
+                    .append(",\"timezone\":\"America/Sao_Paulo\",\"admin1\":\"Sao Paulo\",\"population\":1000}");
+        }
+        respond(exchange, body.append("]}").toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void forecast(HttpExchange exchange) throws IOException {
+        pause(UPSTREAM_DELAY_MS / 2);
+
+        // several coordinates in one request are answered with an array, like meteo does
+        var query = exchange.getRequestURI().getQuery();
+        var latitudes = query.replaceAll(".*latitude=([^&]*).*", "$1").split(",").length;
+        if (latitudes == 1) {
+            respondSlowly(exchange, forecast);
+            return;
+        }
+
+        var body = new StringBuilder("[");
+        var one = new String(forecast, StandardCharsets.UTF_8);
+        for (int i = 0; i < latitudes; i++) {
+            body.append(i > 0 ? "," : "").append(one);
+        }
+        respondSlowly(exchange, body.append(']').toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // the app's reader is left blocked halfway through the body for the rest of the delay
+    private static void respondSlowly(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (var out = exchange.getResponseBody()) {
+            out.write(body, 0, body.length / 2);
+            out.flush();
+            pause(UPSTREAM_DELAY_MS - UPSTREAM_DELAY_MS / 2);
+            out.write(body, body.length / 2, body.length - body.length / 2);
+        }
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (var out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static final class Result {
+        private final int ok;
+        private final long elapsedMs, p50Ms, p99Ms;
+
+        private Result(int ok, long elapsedMs, long p50Ms, long p99Ms) {
+            this.ok = ok;
+            this.elapsedMs = elapsedMs;
+            this.p50Ms = p50Ms;
+            this.p99Ms = p99Ms;
+        }
+
+        @Override
+        public String toString() {
+            return this.ok + "/" + LOCATIONS + " ok in " + this.elapsedMs + "ms, p50 " + this.p50Ms + "ms, p99 "
+                    + this.p99Ms + "ms";
+        }
+    }
+}
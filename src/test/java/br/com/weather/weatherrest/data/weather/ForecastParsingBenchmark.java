@@ -0,0 +1,172 @@
+package br.com.weather.weatherrest.data.weather;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonParser;
+
+/*
+ * the recorded 7 day forecast parsed the old way (body String, JsonObject
+ * tree, fromJSONArray) and through ForecastReader, from the same bytes the
+ * http client hands over, nulls for the past hours included. prints time
+ * and allocation per parse; only the allocation is asserted, timings are
+ * left to whoever reads the output.
+ *
+ *   ./gradlew benchmark -Dweather.bench.iterations=20000
+ */
+@Tag("benchmark")
+class ForecastParsingBenchmark {
+    private static final int WARMUP = Integer.getInteger("weather.bench.warmup", 5000);
+    private static final int ITERATIONS = Integer.getInteger("weather.bench.iterations", 10000);
+    private static final int ROUNDS = Integer.getInteger("weather.bench.rounds", 5);
+
+    private static byte[] payload;
+    // results are folded in here so the jit can't drop the parsing
+    private static long sink;
+
+    @BeforeAll
+    static void loadPayload() throws IOException {
+        try (var in = ForecastParsingBenchmark.class.getResourceAsStream("/forecast-7d.json")) {
+            payload = in.readAllBytes();
+        }
+    }
+
+    @Test
+    void bothParsersReadTheSameForecast() throws IOException {
+        var tree = parseTree();
+        var data = parseReader();
+
+        var days = tree.daily.get();
+        var hours = tree.hourly.get();
+        assertEquals(7, days.size());
+        assertEquals(168, hours.size());
+        assertEquals(days.size(), data.getDailyWeather().get().size());
+        assertEquals(hours.size(), data.getHourlyWeather().get().size());
+        assertEquals(tree.current.get().getTimestamp(), data.getCurrentWeather().get().getTimestamp());
+
+        var series = data.getHourlyWeather().get();
+        for (int i = 0; i < hours.size(); i++) {
+            assertEquals(hours.get(i).getTimestamp(), series.getTimestamp(i));
+            for (var variable : HourlyVariable.all()) {
+                assertEquals(hours.get(i).get(variable), series.get(variable, i), 1e-6);
+            }
+        }
+        for (int i = 0; i < days.size(); i++) {
+            assertEquals(days.get(i).getMaxTemp(), data.getDailyWeather().get().get(i).getMaxTemp(), 1e-9);
+            assertEquals(days.get(i).getSunset(), data.getDailyWeather().get().get(i).getSunset());
+        }
+    }
+
+    @Test
+    void readerAllocatesLessThanTheTree() throws IOException {
+        for (int i = 0; i < WARMUP; i++) {
+            consume(parseTree());
+            consume(parseReader());
+        }
+
+        Measure tree = null, reader = null;
+        // interleaved rounds so drift (gc, frequency scaling) hits both alike, best round kept
+        for (int round = 0; round < ROUNDS; round++) {
+            tree = Measure.best(tree, measure(true));
+            reader = Measure.best(reader, measure(false));
+        }
+
+        System.out.println("tree:   " + tree);
+        System.out.println("reader: " + reader);
+        System.out.println("(" + payload.length + " bytes per payload, sink " + sink + ")");
+
+        // threads without allocation accounting report -1, nothing to compare then
+        if (tree.bytesPerOp >= 0 && reader.bytesPerOp >= 0) {
+            assertTrue(reader.bytesPerOp < tree.bytesPerOp, "reader " + reader + " vs tree " + tree);
+        }
+    }
+
+    private static Measure measure(boolean tree) throws IOException {
+        var allocated = allocatedBytes();
+        var start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (tree) {
+                consume(parseTree());
+            } else {
+                consume(parseReader());
+            }
+        }
+        var elapsed = System.nanoTime() - start;
+        var bytes = allocated < 0 ? -1 : (allocatedBytes() - allocated) / ITERATIONS;
+        return new Measure((double) elapsed / ITERATIONS, bytes);
+    }
+
+    // what MeteoAPI did before ForecastReader: the whole body as a String, then a JsonObject tree
+    private static Tree parseTree() {
+        var object = JsonParser.parseString(new String(payload, StandardCharsets.UTF_8)).getAsJsonObject();
+        return new Tree(CurrentWeather.fromJSON(object.getAsJsonObject("current_weather")),
+                DailyWeather.fromJSONArray(object.getAsJsonObject("daily")),
+                HourlyWeather.fromJSONArray(object.getAsJsonObject("hourly")));
+    }
+
+    private static ForecastData parseReader() throws IOException {
+        try (var reader = new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8)) {
+            return ForecastReader.read(reader);
+        }
+    }
+
+    private static void consume(Tree tree) {
+        sink += tree.hourly.get().get(167).getTimestamp() + tree.daily.get().size();
+    }
+
+    private static void consume(ForecastData data) {
+        sink += data.getHourlyWeather().get().getTimestamp(167) + data.getDailyWeather().get().size();
+    }
+
+    private static long allocatedBytes() {
+        var threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static final class Tree {
+        private final Optional<CurrentWeather> current;
+        private final Optional<List<DailyWeather>> daily;
+        private final Optional<List<HourlyWeather>> hourly;
+
+        private Tree(Optional<CurrentWeather> current, Optional<List<DailyWeather>> daily,
+                Optional<List<HourlyWeather>> hourly) {
+            this.current = current;
+            this.daily = daily;
+            this.hourly = hourly;
+        }
+    }
+
+    private static final class Measure {
+        private final double nanosPerOp;
+        private final long bytesPerOp;
+
+        private Measure(double nanosPerOp, long bytesPerOp) {
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        private static Measure best(Measure current, Measure next) {
+            return current == null || next.nanosPerOp < current.nanosPerOp ? next : current;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f us/op, %d bytes/op", this.nanosPerOp / 1000, this.bytesPerOp);
+        }
+    }
+}
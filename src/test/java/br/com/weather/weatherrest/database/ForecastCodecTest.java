@@ -0,0 +1,89 @@
+package br.com.weather.weatherrest.database;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import org.junit.jupiter.api.Test;
+
+import br.com.weather.weatherrest.data.weather.HourlySeries;
+import br.com.weather.weatherrest.data.weather.HourlyVariable;
+import br.com.weather.weatherrest.data.weather.WeatherCode;
+
+class ForecastCodecTest {
+    private static final int WEEK = 168;
+    private static final long START = 1665284400;
+
+    @Test
+    void roundTripsAWeekBitForBit() throws DataFormatException {
+        var hours = week(new Random(1503));
+        assertSameSeries(hours, ForecastCodec.decode(ForecastCodec.encode(hours.view(0, WEEK))));
+    }
+
+    @Test
+    void keepsValuesTheScaleCantHold() throws DataFormatException {
+        var hours = week(new Random(7));
+        var temperature = HourlyVariable.TEMPERATURE;
+        hours.set(temperature, 0, Float.NaN);
+        hours.set(temperature, 1, -0.0f);
+        hours.set(temperature, 2, Float.POSITIVE_INFINITY);
+        hours.set(HourlyVariable.VISIBILITY, 3, 3.4e38f);
+        hours.set(HourlyVariable.FREEZING_LEVEL_HEIGHT, 4, 9.2e18f);
+        hours.set(HourlyVariable.WIND_SPEED, 5, 1.23456789f);
+        hours.set(HourlyVariable.RAIN, 6, -1e-7f);
+
+        assertSameSeries(hours, ForecastCodec.decode(ForecastCodec.encode(hours.view(0, WEEK))));
+    }
+
+    @Test
+    void quantizedColumnsStaySmallerThanRawOnes() {
+        var quantized = week(new Random(11));
+        var raw = week(new Random(11));
+        for (var variable : HourlyVariable.all()) {
+            // off the scale in the first row only, the whole column goes raw
+            raw.set(variable, 0, raw.getFloat(variable, 0) + 1e-3f);
+        }
+
+        var small = ForecastCodec.encode(quantized.view(0, WEEK)).length;
+        var large = ForecastCodec.encode(raw.view(0, WEEK)).length;
+        assertTrue(small < large, small + " vs " + large);
+    }
+
+    @Test
+    void rejectsAnUnknownVersion() {
+        var data = ForecastCodec.encode(week(new Random(3)).view(0, WEEK));
+        data[0] = 99;
+        assertThrows(DataFormatException.class, () -> ForecastCodec.decode(data));
+    }
+
+    // values on each variable's scale, like meteo sends them
+    private static HourlySeries week(Random random) {
+        var codes = WeatherCode.values();
+        var series = new HourlySeries(WEEK);
+        for (int i = 0; i < WEEK; i++) {
+            series.setTimestamp(i, START + i * 3600L);
+            for (var variable : HourlyVariable.all()) {
+                series.set(variable, i, (double) (random.nextInt(20000) - 5000) / variable.getScale());
+            }
+            series.setWeatherCode(i, codes[random.nextInt(codes.length)]);
+            series.setDay(i, i % 24 >= 6 && i % 24 < 18);
+        }
+        return series;
+    }
+
+    private static void assertSameSeries(HourlySeries expected, HourlySeries actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getTimestamp(i), actual.getTimestamp(i));
+            assertEquals(expected.getWeatherCode(i), actual.getWeatherCode(i));
+            assertEquals(expected.isDay(i), actual.isDay(i));
+            for (var variable : HourlyVariable.all()) {
+                assertEquals(Float.floatToIntBits(expected.getFloat(variable, i)),
+                        Float.floatToIntBits(actual.getFloat(variable, i)), variable + " at row " + i);
+            }
+        }
+    }
+}
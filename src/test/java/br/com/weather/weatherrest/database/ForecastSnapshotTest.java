@@ -0,0 +1,150 @@
+package br.com.weather.weatherrest.database;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import br.com.weather.weatherrest.data.weather.CurrentWeather;
+import br.com.weather.weatherrest.data.weather.DailyWeather;
+import br.com.weather.weatherrest.data.weather.HourlySeries;
+import br.com.weather.weatherrest.data.weather.HourlyVariable;
+import br.com.weather.weatherrest.data.weather.WeatherCode;
+import br.com.weather.weatherrest.data.weather.WeatherLocation;
+
+class ForecastSnapshotTest {
+    private static final long START = 1665284400;
+
+    @Test
+    void readsBackWhatWasWritten(@TempDir Path dir) {
+        var file = dir.resolve("locations.snapshot");
+        var written = List.of(location(30, "S\u00e3o Paulo"), location(10, "Curitiba"), location(20, "Recife"));
+        var snapshot = ForecastSnapshot.write(file, written, Optional.empty()).get();
+
+        assertEquals(3, snapshot.size());
+        assertFalse(snapshot.get(15).isPresent());
+        for (var expected : written) {
+            assertSameLocation(expected, snapshot.get(expected.getId()).get());
+        }
+        snapshot.close();
+    }
+
+    @Test
+    void replacesTheMappedSnapshot(@TempDir Path dir) {
+        var file = dir.resolve("locations.snapshot");
+        var first = ForecastSnapshot.write(file, List.of(location(1, "Natal"), location(2, "Bel\u00e9m")),
+                Optional.empty());
+        var second = ForecastSnapshot.write(file, List.of(location(2, "Bel\u00e9m"), location(3, "Manaus")), first)
+                .get();
+
+        // the old mapping is closed before the file is replaced, it answers nothing anymore
+        assertFalse(first.get().get(1).isPresent());
+        assertEquals(2, second.size());
+        assertFalse(second.get(1).isPresent());
+        assertEquals("Manaus", second.get(3).get().getName());
+        assertFalse(Files.exists(dir.resolve("locations.snapshot.tmp")));
+        second.close();
+    }
+
+    @Test
+    void ignoresFilesThatArentSnapshots(@TempDir Path dir) throws IOException {
+        assertFalse(ForecastSnapshot.open(dir.resolve("missing.snapshot")).isPresent());
+
+        var garbage = dir.resolve("garbage.snapshot");
+        Files.write(garbage, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 });
+        assertFalse(ForecastSnapshot.open(garbage).isPresent());
+    }
+
+    // a forecast of two days with their hours, values off the codec scales included
+    private static WeatherLocation location(int id, String name) {
+        var hours = new HourlySeries(48);
+        for (int i = 0; i < hours.size(); i++) {
+            hours.setTimestamp(i, START + i * 3600L);
+            for (var variable : HourlyVariable.all()) {
+                hours.set(variable, i, id + i / 10.0 + variable.ordinal() / 7.0);
+            }
+            hours.setWeatherCode(i, WeatherCode.values()[i % 3]);
+            hours.setDay(i, i % 24 >= 6 && i % 24 < 18);
+        }
+
+        var days = new ArrayList<DailyWeather>();
+        for (int d = 0; d < 2; d++) {
+            var day = DailyWeather.getBuilder()
+                    .timestamp(START + d * 86400L)
+                    .maxTemperature(25.5 + d)
+                    .minTemperature(14.25 - d)
+                    .precipitationSum(1.2)
+                    .sunrise(START + d * 86400L + 20460)
+                    .sunset(START + d * 86400L + 65520)
+                    .weatherCode(WeatherCode.values()[d])
+                    .build();
+            day.setHourlyWeather(Optional.of(hours.view(d * 24, d * 24 + 24)));
+            days.add(day);
+        }
+
+        var location = WeatherLocation.getBuilder()
+                .id(id)
+                .name(name)
+                .country("Brasil")
+                .countryCode("BR")
+                .timezone("America/Sao_Paulo")
+                .admin1("none")
+                .latitude(-23.5 + id)
+                .longitude(-46.6 - id)
+                .population(1000 * id)
+                .lastUpdated(1665300000000L + id)
+                .currentWeather(new CurrentWeather(20.5, 3.25, 180, WeatherCode.values()[1], START + 3600))
+                .dailyWeather(days)
+                .build();
+        location.recordAccess(System.currentTimeMillis());
+        return location;
+    }
+
+    private static void assertSameLocation(WeatherLocation expected, WeatherLocation actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getCountryCode(), actual.getCountryCode());
+        assertEquals(expected.getTimeZone(), actual.getTimeZone());
+        assertEquals(expected.getAdmin1(), actual.getAdmin1());
+        assertEquals(expected.getPopulation(), actual.getPopulation());
+        assertEquals(expected.getLatitude(), actual.getLatitude(), 0);
+        assertEquals(expected.getLastUpdated(), actual.getLastUpdated());
+        assertEquals(expected.getHits(), actual.getHits());
+        assertEquals(expected.getETag(), actual.getETag());
+
+        var current = actual.getCurrentWeather().get();
+        assertEquals(expected.getCurrentWeather().get().getTimestamp(), current.getTimestamp());
+        assertEquals(expected.getCurrentWeather().get().getTemperature(), current.getTemperature(), 0);
+
+        var expectedDays = expected.getDailyWeather().get();
+        var actualDays = actual.getDailyWeather().get();
+        assertEquals(expectedDays.size(), actualDays.size());
+        for (int d = 0; d < expectedDays.size(); d++) {
+            assertEquals(expectedDays.get(d).getTimestamp(), actualDays.get(d).getTimestamp());
+            assertEquals(expectedDays.get(d).getMaxTemp(), actualDays.get(d).getMaxTemp(), 0);
+            assertEquals(expectedDays.get(d).getSunset(), actualDays.get(d).getSunset());
+
+            var expectedHours = expectedDays.get(d).getHourlyWeather().get();
+            var actualHours = actualDays.get(d).getHourlyWeather().get();
+            assertEquals(expectedHours.size(), actualHours.size());
+            for (int h = 0; h < expectedHours.size(); h++) {
+                assertEquals(expectedHours.get(h).getTimestamp(), actualHours.get(h).getTimestamp());
+                assertEquals(expectedHours.get(h).isDay(), actualHours.get(h).isDay());
+                for (var variable : HourlyVariable.all()) {
+                    // HourlyWeather widens through the float text, equal doubles mean equal floats
+                    assertEquals(expectedHours.get(h).get(variable), actualHours.get(h).get(variable), 0);
+                }
+            }
+        }
+        assertTrue(actual.hasForecast());
+    }
+}
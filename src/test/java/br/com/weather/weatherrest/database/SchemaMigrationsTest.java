@@ -0,0 +1,183 @@
+package br.com.weather.weatherrest.database;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import br.com.weather.weatherrest.data.weather.HourlyVariable;
+
+/*
+ * databases as the json column version left them, migrated all the way.
+ */
+class SchemaMigrationsTest {
+    private static final int VERSION = 5;
+    private static final long START = 1665284400;
+
+    @Test
+    void migratesTheLegacyJsonColumn(@TempDir Path dir) throws SQLException {
+        var path = dir.resolve("locations.db").toString();
+        legacy(path, 3550, forecast().toString());
+
+        var storage = new WeatherStorage(path);
+        assertEquals(VERSION, version(path));
+
+        var location = storage.queryLocation(3550).get();
+        assertEquals("S\u00e3o Paulo", location.getName());
+        assertEquals("America/Sao_Paulo", location.getTimeZone().get());
+
+        var current = storage.queryCurrentWeather(3550).get();
+        assertEquals(START + 3600, current.getTimestamp());
+        assertEquals(21.3, current.getTemperature(), 0);
+        assertEquals(1, current.getCode().getCode());
+
+        var days = storage.queryDailyWeather(3550).get();
+        assertEquals(2, days.size());
+        assertEquals(25.1, days.get(0).getMaxTemp(), 0);
+        assertEquals(START + 86400 + 65520, days.get(1).getSunset());
+        for (int d = 0; d < days.size(); d++) {
+            var hours = days.get(d).getHourlyWeather().get();
+            assertEquals(24, hours.size());
+            assertEquals(START + d * 86400L, hours.get(0).getTimestamp());
+            assertEquals(15 + d + 0.5, hours.get(12).getTemperature(), 1e-6);
+            assertTrue(hours.get(12).isDay());
+            assertFalse(hours.get(0).isDay());
+        }
+    }
+
+    @Test
+    void rollsBackAStepThatThrows(@TempDir Path dir) throws SQLException {
+        var path = dir.resolve("locations.db").toString();
+        // parses fine, but weather_data isn't an object: an unchecked exception halfway through step 2
+        legacy(path, 3550, "{\"weather_data\":[1]}");
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            var storage = new SQLiteStorage(path);
+            try {
+                assertThrows(IllegalStateException.class, () -> storage.write(SchemaMigrations::migrate));
+            } finally {
+                storage.close();
+            }
+
+            // step 1 went through, step 2 left nothing behind, so the next boot fails the same way again
+            assertEquals(1, version(path));
+            assertFalse(hasTable(path, "current_weather"));
+        }
+    }
+
+    private static void legacy(String path, int id, String weatherData) throws SQLException {
+        try (var con = DriverManager.getConnection("jdbc:sqlite:" + path);
+                var statement = con.createStatement()) {
+            statement.execute("create table locations(" +
+                    "id integer primary key," +
+                    "name text," +
+                    "normalized_name text," +
+                    "country text," +
+                    "country_code text," +
+                    "latitude real," +
+                    "longitude real," +
+                    "timezone text," +
+                    "last_updated integer," +
+                    "admin1 text," +
+                    "population integer," +
+                    "weather_data text) without rowid;");
+
+            try (var insert = con.prepareStatement("insert into locations values(?,?,?,?,?,?,?,?,?,?,?,?);")) {
+                insert.setInt(1, id);
+                insert.setString(2, "S\u00e3o Paulo");
+                insert.setString(3, "Sao Paulo");
+                insert.setString(4, "Brasil");
+                insert.setString(5, "BR");
+                insert.setDouble(6, -23.5475);
+                insert.setDouble(7, -46.63611);
+                insert.setString(8, "America/Sao_Paulo");
+                insert.setLong(9, START * 1000);
+                insert.setString(10, "Sao Paulo");
+                insert.setInt(11, 10021295);
+                insert.setString(12, weatherData);
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    // what toJsonObject(true) stored: codes as objects, hours nested in their day
+    private static JsonObject forecast() {
+        var current = new JsonObject();
+        current.addProperty("time", START + 3600);
+        current.addProperty("temperature", 21.3);
+        current.addProperty("windspeed", 3.2);
+        current.addProperty("winddirection", 180);
+        current.add("weathercode", code(1));
+
+        var daily = new JsonArray();
+        for (int d = 0; d < 2; d++) {
+            var day = new JsonObject();
+            day.addProperty("time", START + d * 86400L);
+            for (var key : new String[] { "temperature_2m_max", "temperature_2m_min", "apparent_temperature_max",
+                    "apparent_temperature_min", "precipitation_sum", "rain_sum", "showers_sum", "snowfall_sum",
+                    "precipitation_hours", "windspeed_10m_max", "windgusts_10m_max", "winddirection_10m_dominant" }) {
+                day.addProperty(key, 25.1 - d);
+            }
+            day.addProperty("sunrise", START + d * 86400L + 20460);
+            day.addProperty("sunset", START + d * 86400L + 65520);
+            day.add("weathercode", code(2));
+
+            var hourly = new JsonArray();
+            for (int h = 0; h < 24; h++) {
+                var hour = new JsonObject();
+                hour.addProperty("time", START + d * 86400L + h * 3600L);
+                for (var variable : HourlyVariable.all()) {
+                    hour.addProperty(variable.getKey(), 15 + d + h / 24.0);
+                }
+                // old rows have no precipitation_probability for past hours
+                hour.add(HourlyVariable.PRECIPITATION_PROBABILITY.getKey(), null);
+                hour.add("weathercode", code(3));
+                hour.addProperty("is_day", h >= 6 && h < 18);
+                hourly.add(hour);
+            }
+            day.add("hourly", hourly);
+            daily.add(day);
+        }
+
+        var data = new JsonObject();
+        data.add("current_weather", current);
+        data.add("daily", daily);
+        var json = new JsonObject();
+        json.add("weather_data", data);
+        return json;
+    }
+
+    private static JsonObject code(int code) {
+        var object = new JsonObject();
+        object.addProperty("code", code);
+        return object;
+    }
+
+    private static int version(String path) throws SQLException {
+        try (var con = DriverManager.getConnection("jdbc:sqlite:" + path);
+                var statement = con.createStatement();
+                var resultSet = statement.executeQuery("pragma user_version;")) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    private static boolean hasTable(String path, String table) throws SQLException {
+        try (var con = DriverManager.getConnection("jdbc:sqlite:" + path);
+                var statement = con.prepareStatement("select 1 from sqlite_master where type='table' and name=?;")) {
+            statement.setString(1, table);
+            try (var resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+    }
+}